@@ -0,0 +1,238 @@
+package edu.cqupt.aio;
+
+import edu.cqupt.nio.byteBuffer.utils.ByteBufferPool;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 基于 AsynchronousServerSocketChannel 的网络服务器（Proactor 模式）
+ *
+ * 和 Selector 的 Reactor 模式不同，这里不是"事件就绪后自己去读"，而是把读写操作交给操作系统，
+ * 操作完成后由 AsynchronousChannelGroup 中的线程回调 CompletionHandler。
+ * 协议与 SelectorServer 相同：消息之间使用 \n 分隔，服务器把收到的每条完整消息原样写回（echo）。
+ *
+ * 1. 所有连接共享一个固定线程数的 AsynchronousChannelGroup
+ * 2. accept -> read -> write -> read ... 通过 CompletionHandler 串联起来
+ * 3. 每个连接只创建一次读、写两个 handler，之后每次读写都复用它们，不会为每次操作分配 lambda
+ * 4. 读缓冲区从 ByteBufferPool 中借出，连接关闭后归还
+ */
+@Slf4j
+public class AioServer implements AutoCloseable {
+    private final int port;
+    private final int threads;
+    private final ByteBufferPool bufferPool;
+    private final AcceptHandler acceptHandler = new AcceptHandler();
+    private AsynchronousChannelGroup group;
+    private AsynchronousServerSocketChannel server;
+
+    public AioServer() {
+        this(8080, Runtime.getRuntime().availableProcessors(), 1024);
+    }
+
+    public AioServer(int port, int threads, int bufferSize) {
+        this.port = port;
+        this.threads = threads;
+        this.bufferPool = new ByteBufferPool(bufferSize, true, 1024);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        AioServer aioServer = new AioServer();
+        aioServer.start();
+        log.debug("aio server started...");
+        aioServer.group.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+    }
+
+    /**
+     * 创建共享的 AsynchronousChannelGroup，绑定端口并发起第一次 accept
+     */
+    public void start() throws IOException {
+        AtomicInteger index = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                r -> new Thread(r, "aio-" + index.getAndIncrement()));
+        group = AsynchronousChannelGroup.withThreadPool(executor);
+        server = AsynchronousServerSocketChannel.open(group);
+        server.bind(new InetSocketAddress(port));
+        server.accept(null, acceptHandler);
+    }
+
+    public int port() throws IOException {
+        return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (server != null) {
+            server.close();
+            group.shutdownNow();
+        }
+    }
+
+    /**
+     * 处理 accept 完成事件，处理完一个连接后立刻再次发起 accept
+     */
+    private class AcceptHandler implements CompletionHandler<AsynchronousSocketChannel, Void> {
+        @Override
+        public void completed(AsynchronousSocketChannel channel, Void attachment) {
+            server.accept(null, this);
+            log.debug("server successful connected...{}", channel);
+            new Connection(channel).read();
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            if (exc instanceof AsynchronousCloseException || !server.isOpen()) {
+                return;
+            }
+            log.debug("accept failed...", exc);
+            server.accept(null, this);
+        }
+    }
+
+    /**
+     * 一个客户端连接
+     *
+     * 同一个连接上读和写严格交替进行：读完成 -> 拆分消息 -> 写回完整消息 -> 写完成 -> 再读，
+     * 因此不会出现 WritePendingException，读缓冲区也可以直接当作写缓冲区使用，不需要再复制一次。
+     */
+    private class Connection {
+        private final AsynchronousSocketChannel channel;
+        private final ReadHandler readHandler = new ReadHandler();
+        private final WriteHandler writeHandler = new WriteHandler();
+        private ByteBuffer buffer;
+        /**
+         * 写回之前缓冲区中的数据总量，写完之后恢复 limit 再 compact，保留半包
+         */
+        private int readLimit;
+
+        Connection(AsynchronousSocketChannel channel) {
+            this.channel = channel;
+            this.buffer = bufferPool.acquire();
+        }
+
+        void read() {
+            channel.read(buffer, this, readHandler);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("close failed...", e);
+            }
+            if (buffer != null) {
+                bufferPool.release(buffer);
+                buffer = null;
+            }
+        }
+
+        /**
+         * 找到最后一条完整消息的结束位置（不含），没有完整消息时返回 0
+         */
+        private int lastFrameEnd() {
+            int end = 0;
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    if (log.isDebugEnabled()) {
+                        ByteBuffer frame = buffer.duplicate();
+                        frame.position(end).limit(i);
+                        log.debug("frame...{}", StandardCharsets.UTF_8.decode(frame));
+                    }
+                    end = i + 1;
+                }
+            }
+            return end;
+        }
+    }
+
+    private class ReadHandler implements CompletionHandler<Integer, Connection> {
+        @Override
+        public void completed(Integer read, Connection connection) {
+            if (read < 0) {
+                connection.close();
+                return;
+            }
+            ByteBuffer buffer = connection.buffer;
+            buffer.flip();
+            int end = connection.lastFrameEnd();
+            if (end == 0) {
+                // 没有完整的消息，如果缓冲区已经满了，进行2倍扩容
+                if (buffer.limit() == buffer.capacity()) {
+                    ByteBuffer newBuffer = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                    newBuffer.put(buffer);
+                    bufferPool.release(buffer);
+                    connection.buffer = newBuffer;
+                } else {
+                    buffer.position(buffer.limit()).limit(buffer.capacity());
+                }
+                connection.read();
+                return;
+            }
+            connection.readLimit = buffer.limit();
+            buffer.limit(end);
+            connection.channel.write(buffer, connection, connection.writeHandler);
+        }
+
+        @Override
+        public void failed(Throwable exc, Connection connection) {
+            log.debug("read failed...{}", exc.toString());
+            connection.close();
+        }
+    }
+
+    private class WriteHandler implements CompletionHandler<Integer, Connection> {
+        @Override
+        public void completed(Integer written, Connection connection) {
+            ByteBuffer buffer = connection.buffer;
+            if (buffer.hasRemaining()) {
+                connection.channel.write(buffer, connection, this);
+                return;
+            }
+            buffer.limit(connection.readLimit);
+            buffer.compact();
+            connection.read();
+        }
+
+        @Override
+        public void failed(Throwable exc, Connection connection) {
+            log.debug("write failed...{}", exc.toString());
+            connection.close();
+        }
+    }
+
+    /**
+     * 启动服务器，发送黏包、半包数据，检查回写的内容
+     */
+    @Test
+    public void testEcho() throws IOException {
+        try (AioServer aioServer = new AioServer(0, 2, 16)) {
+            aioServer.start();
+            try (SocketChannel sc = SocketChannel.open(new InetSocketAddress("localhost", aioServer.port()))) {
+                sc.write(StandardCharsets.UTF_8.encode("Hello,world\nI'm zhangsan\nHo"));
+                sc.write(StandardCharsets.UTF_8.encode("w are you? 0123456789abcdef\n"));
+                String expected = "Hello,world\nI'm zhangsan\nHow are you? 0123456789abcdef\n";
+                ByteBuffer received = ByteBuffer.allocate(expected.length());
+                while (received.hasRemaining() && sc.read(received) >= 0) {
+                }
+                received.flip();
+                assertEquals(expected, StandardCharsets.UTF_8.decode(received).toString());
+            }
+        }
+    }
+}
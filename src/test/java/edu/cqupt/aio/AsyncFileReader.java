@@ -0,0 +1,223 @@
+package edu.cqupt.aio;
+
+import edu.cqupt.nio.byteBuffer.utils.ByteBufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * 流水线式的异步分块读文件
+ *
+ * FileAIO 中只发起了一次 read，然后阻塞等待。这里把文件切成固定大小的块，
+ * 同时保持 depth 个 AsynchronousFileChannel.read(dst, position, ...) 处于进行中的状态，
+ * 让磁盘队列一直有活干；读完的块按文件顺序交给 ChunkConsumer。
+ *
+ * 背压：最多只有 depth 个缓冲区在使用中，一个块被消费完之后它的缓冲区才会被用来发起下一次读，
+ * 所以消费者慢的时候读取也会跟着慢下来，不会无限制地占用内存。
+ *
+ * 读取失败或者消费者抛出异常时，已经读完的块的缓冲区马上还回池子；还在进行中的读操作在关闭 channel 之后完成，
+ * 那时再归还。每个 slot 的缓冲区只会被还一次。
+ */
+public class AsyncFileReader {
+    private final int chunkSize;
+    private final int depth;
+    private final ByteBufferPool bufferPool;
+
+    public AsyncFileReader(int chunkSize, int depth) {
+        if (depth <= 0) {
+            throw new IllegalArgumentException("depth must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.depth = depth;
+        this.bufferPool = new ByteBufferPool(chunkSize, true, depth);
+    }
+
+    /**
+     * 按顺序接收文件块
+     */
+    public interface ChunkConsumer {
+        /**
+         * @param position 块在文件中的起始位置
+         * @param chunk    读模式的块内容，方法返回后缓冲区会被回收，不能在外部保留引用
+         */
+        void accept(long position, ByteBuffer chunk);
+    }
+
+    /**
+     * 异步读取整个文件，调用线程不会被阻塞
+     *
+     * @return 读取完成后返回读到的总字节数
+     */
+    public CompletableFuture<Long> read(Path path, ChunkConsumer consumer) throws IOException {
+        AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+        Session session = new Session(channel, channel.size(), consumer);
+        session.start();
+        return session.future;
+    }
+
+    /**
+     * 当前池中空闲的缓冲区数量
+     */
+    int availableBuffers() {
+        return bufferPool.available();
+    }
+
+    /**
+     * 正在进行中的一次读取，slot 按 seq % depth 复用
+     */
+    private static class Slot {
+        private static final AtomicReferenceFieldUpdater<Slot, ByteBuffer> BUFFER =
+                AtomicReferenceFieldUpdater.newUpdater(Slot.class, ByteBuffer.class, "buffer");
+
+        private final CompletionHandler<Integer, Slot> handler;
+        /**
+         * 为 null 时已经还回池子
+         */
+        private volatile ByteBuffer buffer;
+        private long seq;
+        private long position;
+        private volatile boolean ready;
+
+        Slot(CompletionHandler<Integer, Slot> handler) {
+            this.handler = handler;
+        }
+
+        /**
+         * 把缓冲区还回池子，正常交付、读取失败、会话结束可能同时发生，只有第一次调用生效
+         */
+        void release(ByteBufferPool pool) {
+            pool.release(BUFFER.getAndSet(this, null));
+        }
+    }
+
+    private class Session implements CompletionHandler<Integer, Slot> {
+        private final AsynchronousFileChannel channel;
+        private final long size;
+        private final long chunkCount;
+        private final ChunkConsumer consumer;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+        private final Slot[] slots = new Slot[depth];
+        /**
+         * 保证同一时刻只有一个线程在按顺序交付块
+         */
+        private final AtomicInteger wip = new AtomicInteger();
+        /**
+         * 下一个要交付的块，只由持有 wip 的线程修改
+         */
+        private long deliverSeq;
+
+        Session(AsynchronousFileChannel channel, long size, ChunkConsumer consumer) {
+            this.channel = channel;
+            this.size = size;
+            this.chunkCount = (size + chunkSize - 1) / chunkSize;
+            this.consumer = consumer;
+            for (int i = 0; i < depth; i++) {
+                slots[i] = new Slot(this);
+            }
+        }
+
+        void start() {
+            if (chunkCount == 0) {
+                finish(null);
+                return;
+            }
+            for (int i = 0; i < depth && i < chunkCount; i++) {
+                issue(slots[i], i);
+            }
+        }
+
+        private void issue(Slot slot, long seq) {
+            slot.seq = seq;
+            slot.position = seq * chunkSize;
+            slot.buffer = bufferPool.acquire();
+            slot.buffer.limit((int) Math.min(chunkSize, size - slot.position));
+            channel.read(slot.buffer, slot.position, slot, slot.handler);
+        }
+
+        @Override
+        public void completed(Integer read, Slot slot) {
+            ByteBuffer buffer = slot.buffer;
+            // 一次 read 不保证读满，没到文件末尾时继续读剩下的部分
+            if (read >= 0 && buffer.hasRemaining() && !future.isDone()) {
+                channel.read(buffer, slot.position + buffer.position(), slot, slot.handler);
+                return;
+            }
+            slot.ready = true;
+            if (future.isDone()) {
+                // 会话已经结束，finish() 可能没有看到这个 slot 已经读完
+                slot.release(bufferPool);
+                return;
+            }
+            drain();
+        }
+
+        @Override
+        public void failed(Throwable exc, Slot slot) {
+            slot.release(bufferPool);
+            finish(exc);
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            while (true) {
+                Slot slot;
+                while (!future.isDone() && deliverSeq < chunkCount
+                        && (slot = slots[(int) (deliverSeq % depth)]).ready) {
+                    slot.ready = false;
+                    ByteBuffer buffer = slot.buffer;
+                    buffer.flip();
+                    try {
+                        consumer.accept(slot.position, buffer);
+                    } catch (RuntimeException e) {
+                        finish(e);
+                        return;
+                    } finally {
+                        slot.release(bufferPool);
+                    }
+                    deliverSeq++;
+                    if (slot.seq + depth < chunkCount) {
+                        issue(slot, slot.seq + depth);
+                    }
+                }
+                if (deliverSeq == chunkCount) {
+                    finish(null);
+                }
+                missed = wip.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+
+        private void finish(Throwable exc) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                if (exc == null) {
+                    exc = e;
+                }
+            }
+            if (exc == null) {
+                future.complete(size);
+                return;
+            }
+            future.completeExceptionally(exc);
+            // 先结束会话再检查 ready，和 completed() 的顺序相反，读完的 slot 至少有一方会归还
+            for (Slot slot : slots) {
+                if (slot.ready) {
+                    slot.release(bufferPool);
+                }
+            }
+        }
+    }
+}
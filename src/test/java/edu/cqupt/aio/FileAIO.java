@@ -9,12 +9,18 @@ import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousFileChannel;
 import java.nio.channels.CompletionHandler;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
 
 import static edu.cqupt.nio.byteBuffer.utils.ByteBufferUtil.debugAll;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * @author LWenH
@@ -58,4 +64,48 @@ public class FileAIO {
         Path path = Paths.get(resource.toURI());
         System.out.println(path);
     }
+
+    /**
+     * 使用 AsyncFileReader 分块读取文件，同时保持多个读操作在进行中，块按顺序交付
+     */
+    @Test
+    public void testAsyncFileReader() throws IOException, URISyntaxException, ExecutionException, InterruptedException {
+        Path path = Paths.get(this.getClass().getClassLoader().getResource("data.txt").toURI());
+        byte[] expected = Files.readAllBytes(path);
+        ByteBuffer content = ByteBuffer.allocate(expected.length);
+        AsyncFileReader reader = new AsyncFileReader(4, 3);
+        long total = reader.read(path, (position, chunk) -> {
+            log.debug("chunk position = {}, bytes = {}", position, chunk.remaining());
+            content.put(chunk);
+        }).get();
+        assertEquals(expected.length, total);
+        assertArrayEquals(expected, content.array());
+    }
+
+    /**
+     * 消费者抛出异常时读取失败，已经读完和还在进行中的块的缓冲区最终都还回池子
+     */
+    @Test
+    public void testAsyncFileReaderReleasesBuffersOnFailure() throws Exception {
+        Path path = Paths.get(this.getClass().getClassLoader().getResource("data.txt").toURI());
+        AsyncFileReader reader = new AsyncFileReader(4, 3);
+        for (int round = 0; round < 20; round++) {
+            try {
+                reader.read(path, (position, chunk) -> {
+                    if (position >= 4) {
+                        throw new IllegalStateException("consumer failed");
+                    }
+                }).get();
+                fail("expected failure");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            // 进行中的读操作在关闭 channel 之后异步完成
+            long deadline = System.nanoTime() + 5_000_000_000L;
+            while (reader.availableBuffers() < 3 && System.nanoTime() - deadline < 0) {
+                Thread.sleep(1);
+            }
+            assertEquals(3, reader.availableBuffers());
+        }
+    }
 }
@@ -1,6 +1,7 @@
 package edu.cqupt.nio.byteBuffer;
 
 import edu.cqupt.nio.byteBuffer.utils.ByteBufferUtil;
+import edu.cqupt.nio.fileChannel.MappedLineReader;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.Test;
 
@@ -11,8 +12,14 @@ import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 
 import static edu.cqupt.nio.byteBuffer.utils.ByteBufferUtil.debugAll;
+import static org.junit.Assert.assertEquals;
 
 /**
  * @author LWenH
@@ -228,4 +235,66 @@ public class TestByteBuffer {
             e.printStackTrace();
         }
     }
+
+    /**
+     * 对比：普通 FileChannel + 缓冲区循环读取 vs 内存映射并行按行读取
+     *
+     * 默认只生成 4MB 的文件检查两种方式结果一致，对比性能时通过 -Dbench.mb=1024 指定更大的文件
+     */
+    @Test
+    public void testMappedLineReader() throws IOException {
+        int mb = Integer.getInteger("bench.mb", 4);
+        Path file = Files.createTempFile("lines", ".txt");
+        try {
+            byte[] line = "Hello,world I'm zhangsan How are you?\n".getBytes(StandardCharsets.UTF_8);
+            ByteBuffer block = ByteBuffer.allocate(1024 * 1024);
+            long expectedLines = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                while (channel.size() < mb * 1024L * 1024L) {
+                    block.clear();
+                    while (block.remaining() >= line.length) {
+                        block.put(line);
+                        expectedLines++;
+                    }
+                    block.flip();
+                    channel.write(block);
+                }
+            }
+            long size = Files.size(file);
+
+            // 1. 缓冲区循环，逐字节寻找 \n
+            long begin = System.nanoTime();
+            long lines = 0;
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        if (buffer.get() == '\n') {
+                            lines++;
+                        }
+                    }
+                    buffer.clear();
+                }
+            }
+            log.info("buffered loop: lines = {}, {} MB/s", lines, throughput(size, System.nanoTime() - begin));
+            assertEquals(expectedLines, lines);
+
+            // 2. 内存映射 + ForkJoinPool 并行，默认的小文件也切成多个窗口，覆盖跨窗口的行
+            int window = Math.min(8, Math.max(1, mb / 4)) * 1024 * 1024;
+            MappedLineReader reader = new MappedLineReader(window, ForkJoinPool.commonPool());
+            LongAdder bytes = new LongAdder();
+            begin = System.nanoTime();
+            lines = reader.forEachLine(file, l -> bytes.add(l.remaining() + 1));
+            log.info("mapped parallel: lines = {}, {} MB/s", lines, throughput(size, System.nanoTime() - begin));
+            assertEquals(expectedLines, lines);
+            assertEquals(size, bytes.sum());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static long throughput(long bytes, long nanos) {
+        return bytes * 1000L / Math.max(1, nanos);
+    }
 }
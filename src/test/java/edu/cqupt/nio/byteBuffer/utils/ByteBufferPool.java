@@ -0,0 +1,68 @@
+package edu.cqupt.nio.byteBuffer.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 固定容量的ByteBuffer池
+ *
+ * 频繁的 allocate / allocateDirect 会带来额外的 GC 和分配开销（直接内存的分配尤其慢），
+ * 这里把用完的ByteBuffer回收起来，下次直接复用。池子是线程安全的，可以被多个线程同时借还。
+ */
+public class ByteBufferPool {
+    /**
+     * 池中每个ByteBuffer的容量
+     */
+    private final int bufferSize;
+    /**
+     * 是否使用直接内存
+     */
+    private final boolean direct;
+    /**
+     * 空闲的ByteBuffer，超过上限的直接丢弃交给GC
+     */
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    public ByteBufferPool(int bufferSize, boolean direct, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled <= 0) {
+            throw new IllegalArgumentException("bufferSize and maxPooled must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * 借出一个处于写模式的空ByteBuffer
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 归还ByteBuffer。容量不一致的（例如扩容后新分配的）不会进入池子
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+        buffer.clear();
+        free.offer(buffer);
+    }
+
+    public int bufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * 当前池中空闲的ByteBuffer数量
+     */
+    public int available() {
+        return free.size();
+    }
+}
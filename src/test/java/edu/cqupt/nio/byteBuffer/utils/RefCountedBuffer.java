@@ -0,0 +1,69 @@
+package edu.cqupt.nio.byteBuffer.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 带引用计数的共享ByteBuffer（类似 Netty 的 ReferenceCounted）
+ *
+ * 同一份数据要发给多个连接时，只编码一次放进这里，每个连接通过 view() 拿到自己的只读视图，
+ * 视图有独立的 position / limit，但共享同一块内存。每个持有者 retain() 一次，用完后 release() 一次，
+ * 最后一次 release() 时把ByteBuffer还给池子。
+ */
+public class RefCountedBuffer {
+    private final ByteBuffer buffer;
+    private final ByteBufferPool pool;
+    private final AtomicInteger refCnt = new AtomicInteger(1);
+
+    /**
+     * @param buffer 读模式的内容
+     * @param pool   内容来自的池子，为 null 时交给 GC
+     */
+    public RefCountedBuffer(ByteBuffer buffer, ByteBufferPool pool) {
+        this.buffer = buffer;
+        this.pool = pool;
+    }
+
+    public RefCountedBuffer retain() {
+        int count;
+        do {
+            count = refCnt.get();
+            if (count <= 0) {
+                throw new IllegalStateException("buffer already released");
+            }
+        } while (!refCnt.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    /**
+     * @return 是否是最后一次释放
+     */
+    public boolean release() {
+        int count = refCnt.decrementAndGet();
+        if (count == 0) {
+            if (pool != null) {
+                pool.release(buffer);
+            }
+            return true;
+        }
+        if (count < 0) {
+            throw new IllegalStateException("buffer released too many times");
+        }
+        return false;
+    }
+
+    /**
+     * 一个新的只读视图，position ~ limit 为全部内容
+     */
+    public ByteBuffer view() {
+        return buffer.asReadOnlyBuffer();
+    }
+
+    public int size() {
+        return buffer.remaining();
+    }
+
+    public int refCnt() {
+        return refCnt.get();
+    }
+}
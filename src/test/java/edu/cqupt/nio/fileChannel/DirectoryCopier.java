@@ -0,0 +1,292 @@
+package edu.cqupt.nio.fileChannel;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 并行、分块的文件夹复制
+ *
+ * 1. 每个文件夹是一个 ForkJoin 任务：先创建目标文件夹，再为子文件夹和文件分别 fork 任务，保证文件夹先于内容创建
+ * 2. 目标路径通过 target.resolve(name) 逐级拼出来，不再对路径字符串做 replace
+ * 3. 文件使用 FileChannel.transferTo 复制，超过 chunkSize 的大文件切成多个区间同时复制
+ * 4. 同时进行的 transferTo 数量由 Semaphore 限制，避免把磁盘队列打满。等待许可时通过 ForkJoinPool.ManagedBlocker 阻塞，
+ *    线程池知道这个工作线程被阻塞了，会临时补充线程，其他不需要许可的任务（遍历文件夹）不会因此停下来
+ */
+public class DirectoryCopier {
+    private final ForkJoinPool pool;
+    private final Semaphore ioPermits;
+    private final long chunkSize;
+
+    /**
+     * @param pool          遍历和复制使用的线程池
+     * @param maxConcurrent 同时进行复制的最大数量
+     * @param chunkSize     大于该值的文件会按区间并行复制
+     */
+    public DirectoryCopier(ForkJoinPool pool, int maxConcurrent, long chunkSize) {
+        if (maxConcurrent <= 0 || chunkSize <= 0) {
+            throw new IllegalArgumentException("maxConcurrent and chunkSize must be positive");
+        }
+        this.pool = pool;
+        this.ioPermits = new Semaphore(maxConcurrent);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 复制进度，可以在复制过程中由其他线程读取
+     */
+    public static class Progress {
+        private final LongAdder directories = new LongAdder();
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        private final long startNanos = System.nanoTime();
+        private volatile long endNanos;
+
+        public long directories() {
+            return directories.sum();
+        }
+
+        public long files() {
+            return files.sum();
+        }
+
+        public long bytes() {
+            return bytes.sum();
+        }
+
+        public boolean isDone() {
+            return endNanos != 0;
+        }
+
+        /**
+         * @return 从开始到现在（或结束）的平均吞吐量，单位 字节/秒
+         */
+        public long bytesPerSecond() {
+            long end = endNanos == 0 ? System.nanoTime() : endNanos;
+            return bytes() * 1_000_000_000L / Math.max(1, end - startNanos);
+        }
+
+        @Override
+        public String toString() {
+            return "directories=" + directories() + ", files=" + files() + ", bytes=" + bytes()
+                    + ", " + bytesPerSecond() / (1024 * 1024) + " MB/s";
+        }
+    }
+
+    public Progress copy(Path source, Path target) throws IOException {
+        Progress progress = new Progress();
+        copy(source, target, progress);
+        return progress;
+    }
+
+    /**
+     * 把 source 整个复制到 target 下，已经存在的文件会被覆盖
+     */
+    public void copy(Path source, Path target, Progress progress) throws IOException {
+        try {
+            pool.invoke(new DirectoryTask(source, target, progress));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            progress.endNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * 并行复制一批文件，key 为源文件，value 为目标文件。目标文件的父文件夹需要已经存在
+     */
+    public void copyFiles(Map<Path, Path> files, Progress progress) throws IOException {
+        List<FileTask> tasks = new ArrayList<>(files.size());
+        for (Map.Entry<Path, Path> entry : files.entrySet()) {
+            tasks.add(new FileTask(entry.getKey(), entry.getValue(), Files.size(entry.getKey()), progress));
+        }
+        try {
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            progress.endNanos = System.nanoTime();
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+        private final Path target;
+        private final Progress progress;
+
+        DirectoryTask(Path source, Path target, Progress progress) {
+            this.source = source;
+            this.target = target;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            try {
+                Files.createDirectories(target);
+                progress.directories.increment();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(source)) {
+                    for (Path path : stream) {
+                        Path to = target.resolve(path.getFileName().toString());
+                        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                        if (attrs.isDirectory()) {
+                            tasks.add(new DirectoryTask(path, to, progress).fork());
+                        } else if (attrs.isRegularFile()) {
+                            tasks.add(new FileTask(path, to, attrs.size(), progress).fork());
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        }
+    }
+
+    private class FileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+        private final Path target;
+        private final long size;
+        private final Progress progress;
+
+        FileTask(Path source, Path target, long size, Progress progress) {
+            this.source = source;
+            this.target = target;
+            this.size = size;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            try (FileChannel to = FileChannel.open(target, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                if (size <= chunkSize) {
+                    transfer(source, to, 0, size, progress);
+                } else {
+                    List<RangeTask> ranges = new ArrayList<>();
+                    for (long position = 0; position < size; position += chunkSize) {
+                        ranges.add(new RangeTask(source, target, position, Math.min(chunkSize, size - position), progress));
+                    }
+                    invokeAll(ranges);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            progress.files.increment();
+        }
+    }
+
+    /**
+     * 复制大文件中的一个区间，每个区间使用自己的 FileChannel
+     */
+    private class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path source;
+        private final Path target;
+        private final long position;
+        private final long count;
+        private final Progress progress;
+
+        RangeTask(Path source, Path target, long position, long count, Progress progress) {
+            this.source = source;
+            this.target = target;
+            this.position = position;
+            this.count = count;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            try (FileChannel to = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                to.position(position);
+                transfer(source, to, position, count, progress);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * 把 source 的 [position, position + count) 写到 to 的当前位置。transferTo 一次不一定传输完，需要循环
+     */
+    private void transfer(Path source, FileChannel to, long position, long count, Progress progress) throws IOException {
+        acquirePermit();
+        try (FileChannel from = FileChannel.open(source, StandardOpenOption.READ)) {
+            for (long left = count; left > 0; ) {
+                long transferred = from.transferTo(position + count - left, left, to);
+                if (transferred <= 0) {
+                    throw new IOException("unexpected end of " + source + " at " + (position + count - left));
+                }
+                left -= transferred;
+                progress.bytes.add(transferred);
+            }
+        } finally {
+            ioPermits.release();
+        }
+    }
+
+    /**
+     * 先尝试直接获取许可，拿不到时再通过 managedBlock 等待
+     */
+    private void acquirePermit() throws InterruptedIOException {
+        if (ioPermits.tryAcquire()) {
+            return;
+        }
+        try {
+            ForkJoinPool.managedBlock(new PermitBlocker());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for an io permit");
+        }
+    }
+
+    /**
+     * 在 ForkJoinPool 的工作线程中等待 ioPermits，等待期间线程池可以补充线程
+     */
+    private class PermitBlocker implements ForkJoinPool.ManagedBlocker {
+        private boolean acquired;
+
+        @Override
+        public boolean block() throws InterruptedException {
+            if (!acquired) {
+                ioPermits.acquire();
+                acquired = true;
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return acquired || (acquired = ioPermits.tryAcquire());
+        }
+    }
+}
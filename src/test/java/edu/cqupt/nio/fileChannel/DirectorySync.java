@@ -0,0 +1,315 @@
+package edu.cqupt.nio.fileChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 基于索引的增量文件夹同步
+ *
+ * 在目标文件夹中保存一份索引（INDEX_FILE），记录上次同步时每个源文件的 大小、修改时间 和（可选的）内容摘要。
+ * 再次同步时：
+ * 1. 索引中没有或目标文件不存在 -> 复制
+ * 2. 大小不同 -> 复制
+ * 3. 大小和修改时间都相同 -> 跳过，不读取文件内容
+ * 4. 大小相同但修改时间不同（无法判断） -> 才计算摘要，摘要相同则只更新索引，不同则复制
+ * 5. 索引中有、源文件夹中已经没有的文件和文件夹 -> 从目标中删除
+ * 6. 文件变成了文件夹 -> 先删除目标中的文件再创建文件夹；文件夹变成了文件 -> 先删除目标中的整个文件夹再复制
+ *
+ * 需要复制的文件交给 DirectoryCopier 并行复制。
+ */
+public class DirectorySync {
+    public static final String INDEX_FILE = ".sync-index";
+    private static final int MAGIC = 0x53594e43;
+    private static final int VERSION = 1;
+    private static final String DIGEST = "MD5";
+
+    private final DirectoryCopier copier;
+    private final boolean hashOnAmbiguity;
+
+    /**
+     * @param hashOnAmbiguity 大小相同而修改时间不同时是否通过摘要判断内容是否变化，false 时直接复制
+     */
+    public DirectorySync(DirectoryCopier copier, boolean hashOnAmbiguity) {
+        this.copier = copier;
+        this.hashOnAmbiguity = hashOnAmbiguity;
+    }
+
+    /**
+     * 索引中的一条记录，记录的是源文件在上次同步时的状态
+     */
+    static class Entry {
+        final boolean directory;
+        final long size;
+        final long modified;
+        byte[] hash;
+
+        Entry(boolean directory, long size, long modified, byte[] hash) {
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * 一次同步的结果
+     */
+    public static class Result {
+        private int copied;
+        private int unchanged;
+        private int deleted;
+        private int hashed;
+        private DirectoryCopier.Progress progress;
+
+        public int copied() {
+            return copied;
+        }
+
+        public int unchanged() {
+            return unchanged;
+        }
+
+        public int deleted() {
+            return deleted;
+        }
+
+        public int hashed() {
+            return hashed;
+        }
+
+        public DirectoryCopier.Progress progress() {
+            return progress;
+        }
+
+        @Override
+        public String toString() {
+            return "copied=" + copied + ", unchanged=" + unchanged + ", deleted=" + deleted
+                    + ", hashed=" + hashed + ", " + progress;
+        }
+    }
+
+    public Result sync(Path source, Path target) throws IOException {
+        Files.createDirectories(target);
+        Path indexFile = target.resolve(INDEX_FILE);
+        Map<String, Entry> previous = readIndex(indexFile);
+        Map<String, Entry> current = new LinkedHashMap<>();
+        Map<Path, Path> toCopy = new LinkedHashMap<>();
+        // 源中已经变成文件、目标中还是文件夹的路径
+        List<Path> replacedDirectories = new ArrayList<>();
+        Result result = new Result();
+
+        Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                String name = relativize(source, dir);
+                if (!name.isEmpty()) {
+                    Path to = target.resolve(name);
+                    if (Files.exists(to, LinkOption.NOFOLLOW_LINKS) && !Files.isDirectory(to, LinkOption.NOFOLLOW_LINKS)) {
+                        // 上次同步时这里是文件
+                        Files.delete(to);
+                    }
+                    Files.createDirectories(to);
+                    current.put(name, new Entry(true, 0, 0, null));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String name = relativize(source, file);
+                if (name.equals(INDEX_FILE)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path to = target.resolve(name);
+                Entry entry = new Entry(false, attrs.size(), attrs.lastModifiedTime().toMillis(), null);
+                Entry old = previous.get(name);
+                current.put(name, entry);
+                if (Files.isDirectory(to, LinkOption.NOFOLLOW_LINKS)) {
+                    replacedDirectories.add(to);
+                    toCopy.put(file, to);
+                } else if (old == null || old.directory || old.size != entry.size || !Files.exists(to)) {
+                    toCopy.put(file, to);
+                } else if (old.modified == entry.modified) {
+                    entry.hash = old.hash;
+                    result.unchanged++;
+                } else if (hashOnAmbiguity) {
+                    entry.hash = hash(file);
+                    byte[] oldHash = old.hash != null ? old.hash : hash(to);
+                    result.hashed++;
+                    if (Arrays.equals(entry.hash, oldHash)) {
+                        result.unchanged++;
+                    } else {
+                        toCopy.put(file, to);
+                    }
+                } else {
+                    toCopy.put(file, to);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        // 先删除文件，再按路径倒序删除文件夹，保证子文件夹先于父文件夹被删除
+        List<String> removed = new ArrayList<>();
+        for (Map.Entry<String, Entry> entry : previous.entrySet()) {
+            if (!current.containsKey(entry.getKey())) {
+                removed.add(entry.getKey());
+            }
+        }
+        Collections.sort(removed, Collections.reverseOrder());
+        for (String name : removed) {
+            try {
+                if (Files.deleteIfExists(target.resolve(name))) {
+                    result.deleted++;
+                }
+            } catch (IOException e) {
+                // 文件夹中还有不受索引管理的文件，保留它
+            }
+        }
+        // 要被文件替换的文件夹，其中受索引管理的内容上面已经删除了，剩下的也要一起删除
+        for (Path dir : replacedDirectories) {
+            deleteTree(dir);
+        }
+
+        result.progress = new DirectoryCopier.Progress();
+        copier.copyFiles(toCopy, result.progress);
+        result.copied = toCopy.size();
+        writeIndex(indexFile, current);
+        return result;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String relativize(Path root, Path path) {
+        return root.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+    }
+
+    /**
+     * 只在大小、修改时间无法判断时才会调用
+     */
+    static byte[] hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(DIGEST);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * 索引格式：MAGIC VERSION count，之后每条记录为 path type size modified hashLength hash
+     *
+     * 索引不存在、格式不对或者不完整（例如写了一半的旧版本）时都当作没有索引，所有文件重新比较
+     */
+    static Map<String, Entry> readIndex(Path indexFile) throws IOException {
+        Map<String, Entry> index = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return index;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                boolean directory = in.readBoolean();
+                long size = in.readLong();
+                long modified = in.readLong();
+                byte[] hash = null;
+                int hashLength = in.readUnsignedByte();
+                if (hashLength > 0) {
+                    hash = new byte[hashLength];
+                    in.readFully(hash);
+                }
+                index.put(name, new Entry(directory, size, modified, hash));
+            }
+        } catch (NoSuchFileException e) {
+            // 第一次同步，没有索引
+        } catch (EOFException | UTFDataFormatException e) {
+            return new HashMap<>();
+        }
+        return index;
+    }
+
+    /**
+     * 先写临时文件并 force 到磁盘，再原子替换，同步中途失败或者掉电也不会留下损坏的索引
+     */
+    static void writeIndex(Path indexFile, Map<String, Entry> index) throws IOException {
+        Path temp = indexFile.resolveSibling(INDEX_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(index.size());
+            for (Map.Entry<String, Entry> e : index.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeBoolean(entry.directory);
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                if (entry.hash == null) {
+                    out.writeByte(0);
+                } else {
+                    out.writeByte(entry.hash.length);
+                    out.write(entry.hash);
+                }
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
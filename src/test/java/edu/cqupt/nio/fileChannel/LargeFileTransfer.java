@@ -0,0 +1,335 @@
+package edu.cqupt.nio.fileChannel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+
+/**
+ * 大文件（可以超过 2GB）的并行复制和校验
+ *
+ * 1. 文件按 rangeSize 切成多个区间，在 ForkJoinPool 中并行复制。所有区间共用一个源文件和一个目标文件的 FileChannel，
+ *    只使用带 position 参数的读写（transferTo / read / write / map），不修改 channel 的位置，可以被多个线程同时使用；
+ *    transferTo 只能写到目标 channel 的当前位置，所以 TRANSFER_TO 的每个区间单独打开一个目标 channel
+ * 2. 位置和长度全部使用 long。transferTo 一次最多传输 Integer.MAX_VALUE 个字节（实际可能更少），map 一次最多映射
+ *    MAX_MAP_BYTES，都按区间剩余的长度循环调用，直到这个区间传输完
+ * 3. preallocate 为 true 时先把目标文件设置为源文件的大小，并行写入的区间不会反复扩展文件。
+ *    JDK 中没有 fallocate，这里只是设置文件长度（在大多数文件系统上是稀疏的），不会真正预留磁盘块
+ * 4. checksum() 并行计算每个区间的 CRC32，再按 zlib 的 crc32_combine 合并成整个文件的 CRC32，
+ *    结果和顺序计算一致；每个区间使用一个直接内存缓冲区流式读取，不会把文件读入内存
+ *
+ * 三种复制方式：
+ * TRANSFER_TO：FileChannel.transferTo，数据不经过用户态（Linux 上是 sendfile / copy_file_range）
+ * MMAP：源文件和目标文件都按窗口映射，在映射的内存之间复制。JDK 没有公开的 unmap，映射要等 MappedByteBuffer
+ *       被 GC 回收才释放，在这之前 Windows 上无法删除或截断这两个文件
+ * BUFFERED：通过一个直接内存缓冲区 read / write
+ */
+public class LargeFileTransfer {
+    /**
+     * transferTo 一次调用最多传输的字节数
+     */
+    private static final long MAX_TRANSFER_BYTES = Integer.MAX_VALUE;
+    /**
+     * 一次映射的最大字节数
+     */
+    private static final long MAX_MAP_BYTES = 256 * 1024 * 1024;
+    /**
+     * BUFFERED 和 checksum() 每次读取的字节数
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    public enum Strategy {
+        TRANSFER_TO, MMAP, BUFFERED
+    }
+
+    private final ForkJoinPool pool;
+    private final long rangeSize;
+    private final boolean preallocate;
+
+    /**
+     * @param pool        复制和校验使用的线程池
+     * @param rangeSize   每个并行复制的区间大小
+     * @param preallocate 复制之前是否先把目标文件设置为源文件的大小
+     */
+    public LargeFileTransfer(ForkJoinPool pool, long rangeSize, boolean preallocate) {
+        if (rangeSize <= 0) {
+            throw new IllegalArgumentException("rangeSize must be positive");
+        }
+        this.pool = pool;
+        this.rangeSize = rangeSize;
+        this.preallocate = preallocate;
+    }
+
+    /**
+     * 一次复制的结果
+     */
+    public static class Result {
+        private final Strategy strategy;
+        private final long bytes;
+        private final long nanos;
+
+        Result(Strategy strategy, long bytes, long nanos) {
+            this.strategy = strategy;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        public long bytes() {
+            return bytes;
+        }
+
+        /**
+         * @return 单位 字节/秒
+         */
+        public long bytesPerSecond() {
+            return bytes * 1_000_000_000L / Math.max(1, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return strategy + ": bytes=" + bytes + ", " + nanos / 1_000_000 + " ms, "
+                    + bytesPerSecond() / (1024 * 1024) + " MB/s";
+        }
+    }
+
+    /**
+     * 把 source 复制到 target，target 已经存在时会被覆盖
+     */
+    public Result copy(Path source, Path target, Strategy strategy) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel from = FileChannel.open(source, StandardOpenOption.READ);
+             // 映射为 READ_WRITE 需要目标文件可读
+             FileChannel to = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size = from.size();
+            if (preallocate && size > 0) {
+                to.write(ByteBuffer.wrap(new byte[1]), size - 1);
+            }
+            List<RangeCopy> ranges = new ArrayList<>();
+            for (long position = 0; position < size; position += rangeSize) {
+                ranges.add(new RangeCopy(from, to, target, strategy, position, Math.min(rangeSize, size - position)));
+            }
+            invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(ranges);
+                }
+            });
+            return new Result(strategy, size, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 并行计算整个文件的 CRC32
+     */
+    public long checksum(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<RangeChecksum> ranges = new ArrayList<>();
+            for (long position = 0; position < size; position += rangeSize) {
+                ranges.add(new RangeChecksum(channel, position, Math.min(rangeSize, size - position)));
+            }
+            return invoke(new RecursiveTask<Long>() {
+                @Override
+                protected Long compute() {
+                    invokeAll(ranges);
+                    long crc = 0;
+                    for (RangeChecksum range : ranges) {
+                        crc = crc32Combine(crc, range.join(), range.count);
+                    }
+                    return crc;
+                }
+            });
+        }
+    }
+
+    private <T> T invoke(ForkJoinTask<T> task) throws IOException {
+        try {
+            return pool.invoke(task);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static class RangeCopy extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel from;
+        private final FileChannel to;
+        private final Path target;
+        private final Strategy strategy;
+        private final long position;
+        private final long count;
+
+        RangeCopy(FileChannel from, FileChannel to, Path target, Strategy strategy, long position, long count) {
+            this.from = from;
+            this.to = to;
+            this.target = target;
+            this.strategy = strategy;
+            this.position = position;
+            this.count = count;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                switch (strategy) {
+                    case TRANSFER_TO:
+                        transferTo();
+                        break;
+                    case MMAP:
+                        mmap();
+                        break;
+                    default:
+                        buffered();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void transferTo() throws IOException {
+            try (FileChannel channel = FileChannel.open(target, StandardOpenOption.WRITE)) {
+                channel.position(position);
+                for (long done = 0; done < count; ) {
+                    long transferred = from.transferTo(position + done, Math.min(count - done, MAX_TRANSFER_BYTES), channel);
+                    if (transferred <= 0) {
+                        throw new IOException("unexpected end of source at " + (position + done));
+                    }
+                    done += transferred;
+                }
+            }
+        }
+
+        private void mmap() throws IOException {
+            for (long done = 0; done < count; ) {
+                long window = Math.min(count - done, MAX_MAP_BYTES);
+                MappedByteBuffer src = from.map(FileChannel.MapMode.READ_ONLY, position + done, window);
+                MappedByteBuffer dst = to.map(FileChannel.MapMode.READ_WRITE, position + done, window);
+                dst.put(src);
+                done += window;
+            }
+        }
+
+        private void buffered() throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, count));
+            for (long done = 0; done < count; ) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                while (buffer.hasRemaining()) {
+                    if (from.read(buffer, position + done + buffer.position()) < 0) {
+                        throw new IOException("unexpected end of source at " + (position + done + buffer.position()));
+                    }
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    to.write(buffer, position + done + buffer.position());
+                }
+                done += buffer.limit();
+            }
+        }
+    }
+
+    private static class RangeChecksum extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long position;
+        private final long count;
+
+        RangeChecksum(FileChannel channel, long position, long count) {
+            this.channel = channel;
+            this.position = position;
+            this.count = count;
+        }
+
+        @Override
+        protected Long compute() {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) Math.min(BUFFER_SIZE, count));
+            try {
+                for (long done = 0; done < count; ) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), count - done));
+                    int read = channel.read(buffer, position + done);
+                    if (read < 0) {
+                        throw new IOException("unexpected end of file at " + (position + done));
+                    }
+                    buffer.flip();
+                    crc.update(buffer);
+                    done += read;
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return crc.getValue();
+        }
+    }
+
+    // ---- crc32_combine，移植自 zlib ----
+
+    /**
+     * 已知 crc1 = CRC32(A)，crc2 = CRC32(B)，len2 = B 的长度，求 CRC32(A + B)
+     */
+    static long crc32Combine(long crc1, long crc2, long len2) {
+        if (len2 <= 0) {
+            return crc1;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        // 一个 0 比特对应的算子
+        odd[0] = 0xEDB88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // 两个 0 比特
+        gf2MatrixSquare(even, odd);
+        // 四个 0 比特
+        gf2MatrixSquare(odd, even);
+        // 每次平方，把 len2 个 0 字节作用到 crc1 上
+        do {
+            gf2MatrixSquare(even, odd);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(even, crc1);
+            }
+            len2 >>= 1;
+            if (len2 == 0) {
+                break;
+            }
+            gf2MatrixSquare(odd, even);
+            if ((len2 & 1) != 0) {
+                crc1 = gf2MatrixTimes(odd, crc1);
+            }
+            len2 >>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static long gf2MatrixTimes(long[] mat, long vec) {
+        long sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) {
+                sum ^= mat[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void gf2MatrixSquare(long[] square, long[] mat) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = gf2MatrixTimes(mat, mat[n]);
+        }
+    }
+}
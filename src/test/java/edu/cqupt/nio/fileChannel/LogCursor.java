@@ -0,0 +1,67 @@
+package edu.cqupt.nio.fileChannel;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 读取 MessageLog 的游标，由 MessageLog.cursor(offset) 创建
+ *
+ * 数据通过 FileChannel.transferTo 直接从页缓存发送到目标 channel（例如 SocketChannel），
+ * 不会经过 JVM 的堆内存。只会读到已经持久化的部分，当前段读完并且后面已经有新段时自动切换到下一个段。
+ *
+ * 一个游标只能在一个线程中使用。
+ */
+public class LogCursor {
+    private final MessageLog messageLog;
+    private int segmentIndex;
+    private long position;
+
+    LogCursor(MessageLog messageLog, int segmentIndex, long position) {
+        this.messageLog = messageLog;
+        this.segmentIndex = segmentIndex;
+        this.position = position;
+    }
+
+    /**
+     * 把已经持久化、还没有发送的数据传输到 target
+     *
+     * @return 传输的字节数。返回 0 时，要么已经追上了日志（caughtUp() 为 true），要么 target 暂时写不进去
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        return transferTo(target, Long.MAX_VALUE);
+    }
+
+    /**
+     * 最多传输 maxBytes 字节，用于限速
+     */
+    public long transferTo(WritableByteChannel target, long maxBytes) throws IOException {
+        while (true) {
+            MessageLog.Segment segment = messageLog.segments().get(segmentIndex);
+            long end = segment.committedSize();
+            if (position < end) {
+                long transferred = segment.channel.transferTo(position, Math.min(end - position, maxBytes), target);
+                position += transferred;
+                return transferred;
+            }
+            // 后面已经有新的段，说明当前段不会再有新的数据。但 end 是在看到新段之前读的：
+            // 切换段时先提交旧段的最后一批再添加新段，需要重新读一次，确认旧段确实已经读完
+            if (segmentIndex < messageLog.segments().size() - 1) {
+                if (position < segment.committedSize()) {
+                    continue;
+                }
+                segmentIndex++;
+                position = 0;
+                continue;
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * 是否已经读到了已持久化数据的末尾
+     */
+    public boolean caughtUp() {
+        int last = messageLog.segments().size() - 1;
+        return segmentIndex == last && position >= messageLog.segments().get(last).committedSize();
+    }
+}
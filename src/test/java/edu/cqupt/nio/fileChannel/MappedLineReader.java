@@ -0,0 +1,163 @@
+package edu.cqupt.nio.fileChannel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * 基于内存映射的并行按行读取
+ *
+ * 1. 把文件按 windowSize 切成若干段，每段的边界向后移动到下一个 \n 之后，保证一行不会被切开
+ * 2. 每一段单独使用 FileChannel.map 映射（一个窗口），在 ForkJoinPool 中并行扫描
+ * 3. 每一行以 ByteBuffer 视图的形式交给 LineConsumer，position ~ limit 就是这一行的内容（不含 \n），
+ *    数据始终在映射的页缓存中，不会被复制到堆上
+ */
+public class MappedLineReader {
+    /**
+     * 寻找段边界时每次读取的字节数
+     */
+    private static final int PROBE_SIZE = 4096;
+
+    private final int windowSize;
+    private final ForkJoinPool pool;
+
+    public MappedLineReader(int windowSize, ForkJoinPool pool) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("windowSize must be positive");
+        }
+        this.windowSize = windowSize;
+        this.pool = pool;
+    }
+
+    /**
+     * 接收一行数据，会被多个线程同时调用
+     */
+    public interface LineConsumer {
+        /**
+         * @param line 只读视图，position ~ limit 为一行的内容。视图会被复用，方法返回后不能再使用
+         */
+        void accept(ByteBuffer line);
+    }
+
+    /**
+     * 并行读取文件中的每一行
+     *
+     * @return 总行数
+     */
+    public long forEachLine(Path path, LineConsumer consumer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            List<long[]> segments = split(channel);
+            if (segments.isEmpty()) {
+                return 0;
+            }
+            return pool.invoke(new SegmentTask(channel, segments, 0, segments.size(), consumer));
+        }
+    }
+
+    /**
+     * 把文件切成按行对齐的段，每一段为 [start, end)
+     */
+    private List<long[]> split(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<long[]> segments = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+        long start = 0;
+        while (start < size) {
+            long end = nextLineStart(channel, probe, Math.min(start + windowSize, size) - 1, size);
+            if (end - start > Integer.MAX_VALUE) {
+                throw new IOException("line starting near position " + start + " is too long to map");
+            }
+            segments.add(new long[]{start, end});
+            start = end;
+        }
+        return segments;
+    }
+
+    /**
+     * 从 from 开始向后寻找 \n，返回下一行的起始位置，找不到时返回文件末尾
+     */
+    private static long nextLineStart(FileChannel channel, ByteBuffer probe, long from, long size) throws IOException {
+        long position = from;
+        while (position < size) {
+            probe.clear();
+            int read = channel.read(probe, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (probe.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return size;
+    }
+
+    private static class SegmentTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final List<long[]> segments;
+        private final int from;
+        private final int to;
+        private final LineConsumer consumer;
+
+        SegmentTask(FileChannel channel, List<long[]> segments, int from, int to, LineConsumer consumer) {
+            this.channel = channel;
+            this.segments = segments;
+            this.from = from;
+            this.to = to;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected Long compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                SegmentTask left = new SegmentTask(channel, segments, from, middle, consumer);
+                left.fork();
+                long right = new SegmentTask(channel, segments, middle, to, consumer).compute();
+                return right + left.join();
+            }
+            long[] segment = segments.get(from);
+            try {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY,
+                        segment[0], segment[1] - segment[0]);
+                return scan(window);
+            } catch (IOException e) {
+                throw new IllegalStateException("map failed at position " + segment[0], e);
+            }
+        }
+
+        private long scan(MappedByteBuffer window) {
+            ByteBuffer line = window.asReadOnlyBuffer();
+            int limit = window.limit();
+            int lineStart = 0;
+            long lines = 0;
+            for (int i = 0; i < limit; i++) {
+                if (window.get(i) == '\n') {
+                    line.limit(i).position(lineStart);
+                    consumer.accept(line);
+                    line.limit(limit);
+                    lineStart = i + 1;
+                    lines++;
+                }
+            }
+            // 文件最后一行可能没有 \n
+            if (lineStart < limit) {
+                line.limit(limit).position(lineStart);
+                consumer.accept(line);
+                lines++;
+            }
+            return lines;
+        }
+    }
+}
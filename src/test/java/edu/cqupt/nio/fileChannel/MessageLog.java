@@ -0,0 +1,474 @@
+package edu.cqupt.nio.fileChannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 只追加的分段消息日志
+ *
+ * 1. 日志由多个固定大小上限的段文件组成，文件名为该段第一条消息的偏移量，例如 00000000000000000000.log
+ * 2. 每条消息在文件中存为 内容 + \n，和网络上的协议一致，内容本身不能包含 \n
+ * 3. append 只是把消息放入队列，由 log-flusher 线程批量处理：一批消息通过一次
+ *    FileChannel.write(ByteBuffer[]) 合并写入，然后只调用一次 force()（组提交），之后才完成这一批的 future。
+ *    偏移量在提交成功之后才按段的 baseOffset + committedCount 分配，提交失败的消息不占用偏移量；
+ *    一批消息跨段时，已经提交到前一个段的消息照常完成，只有之后失败的部分以异常结束
+ * 4. maxBatch 和 maxDelayMicros 控制一批的大小和等待时间：等待越久，一次 force() 能确认的消息越多，
+ *    但单条消息的确认延迟也越大；fsync = false 时写入页缓存后就确认，不保证掉电不丢
+ * 5. 每个段有一个稀疏的 OffsetIndex（.index 文件），通过 cursor(offset) 可以从任意偏移量开始读取日志
+ */
+@Slf4j
+public class MessageLog implements Closeable {
+    private static final String SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+    private static final ByteBuffer NEWLINE = ByteBuffer.wrap(new byte[]{'\n'}).asReadOnlyBuffer();
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final int maxBatch;
+    private final long maxDelayNanos;
+    private final boolean fsync;
+    private final int indexIntervalBytes;
+    private final int maxIndexEntries;
+    /**
+     * 每次组提交之后调用，用于通知正在追赶日志的订阅者
+     */
+    private final List<Runnable> commitListeners = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Append> queue = new LinkedBlockingQueue<>();
+    /**
+     * 所有的段，按偏移量从小到大排列，最后一个是当前正在写入的段
+     */
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    /**
+     * @param segmentBytes   单个段文件的大小上限
+     * @param maxBatch       一次组提交最多包含的消息数
+     * @param maxDelayMicros 收到一批中的第一条消息后，最多再等待多久凑成一批，0 表示有多少写多少
+     * @param fsync          是否在确认之前调用 force()
+     */
+    public MessageLog(Path dir, long segmentBytes, int maxBatch, long maxDelayMicros, boolean fsync) throws IOException {
+        this(dir, segmentBytes, maxBatch, maxDelayMicros, fsync, 4096);
+    }
+
+    /**
+     * @param indexIntervalBytes 每隔多少字节记录一条偏移量索引
+     */
+    public MessageLog(Path dir, long segmentBytes, int maxBatch, long maxDelayMicros, boolean fsync,
+                      int indexIntervalBytes) throws IOException {
+        if (segmentBytes <= 0 || maxBatch <= 0 || indexIntervalBytes <= 0) {
+            throw new IllegalArgumentException("segmentBytes, maxBatch and indexIntervalBytes must be positive");
+        }
+        if (segmentBytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segmentBytes must not exceed 2GB, the index stores int positions");
+        }
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        this.maxBatch = maxBatch;
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.fsync = fsync;
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.maxIndexEntries = (int) (segmentBytes / indexIntervalBytes) + 2;
+        recover();
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 根据系统属性打开日志，没有配置 -Dnio.log.dir 时返回 null（不持久化）
+     *
+     * -Dnio.log.dir=日志目录
+     * -Dnio.log.segmentBytes=单个段的大小上限，默认 64MB
+     * -Dnio.log.maxBatch=一次组提交的最大消息数，默认 256
+     * -Dnio.log.maxDelayMicros=凑一批的最长等待时间，默认 1000
+     * -Dnio.log.fsync=确认之前是否 force()，默认 true
+     * -Dnio.log.indexIntervalBytes=稀疏索引的间隔，默认 4096
+     */
+    public static MessageLog openFromSystemProperties() throws IOException {
+        String dir = System.getProperty("nio.log.dir");
+        if (dir == null) {
+            return null;
+        }
+        return new MessageLog(Paths.get(dir),
+                Long.getLong("nio.log.segmentBytes", 64 * 1024 * 1024),
+                Integer.getInteger("nio.log.maxBatch", 256),
+                Long.getLong("nio.log.maxDelayMicros", 1000),
+                Boolean.parseBoolean(System.getProperty("nio.log.fsync", "true")),
+                Integer.getInteger("nio.log.indexIntervalBytes", 4096));
+    }
+
+    /**
+     * 追加一条消息，消息内容会被复制，调用返回后 payload 可以继续复用
+     *
+     * @param payload 不含 \n，\n 是消息的分隔符，否则之后所有消息的偏移量都会错位
+     * @return 消息持久化之后完成，结果为消息的偏移量
+     */
+    public CompletableFuture<Long> append(ByteBuffer payload) {
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate()).flip();
+        byte[] bytes = copy.array();
+        for (byte b : bytes) {
+            if (b == '\n') {
+                throw new IllegalArgumentException("payload must not contain \\n");
+            }
+        }
+        Append append = new Append(copy);
+        if (!running) {
+            append.future.completeExceptionally(new IOException("log closed"));
+            return append.future;
+        }
+        queue.add(append);
+        // 和 close() 竞争：放入队列之前 log-flusher 已经退出、close() 已经清空了队列时，没有人会再处理它。
+        // 这里移除成功说明还没有人取走，由调用者自己结束；移除失败说明已经被取走，取走的一方会完成它
+        if (!running && queue.remove(append)) {
+            append.future.completeExceptionally(new IOException("log closed"));
+        }
+        return append.future;
+    }
+
+    /**
+     * 已经持久化（可以被读取）的下一条消息偏移量
+     */
+    public long endOffset() {
+        Segment last = segments.get(segments.size() - 1);
+        return last.baseOffset + last.committedCount;
+    }
+
+    List<Segment> segments() {
+        return segments;
+    }
+
+    /**
+     * 注册组提交监听器，在 log-flusher 线程中调用，不能阻塞
+     */
+    public void addCommitListener(Runnable listener) {
+        commitListeners.add(listener);
+    }
+
+    /**
+     * 创建一个从 offset 开始读取的游标，offset 超出范围时从日志的开头或末尾开始
+     */
+    public LogCursor cursor(long offset) throws IOException {
+        long end = endOffset();
+        offset = Math.max(segments.get(0).baseOffset, Math.min(offset, end));
+        // 按段的起始偏移量二分查找 offset 所在的段
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segments.get(middle).baseOffset <= offset) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        Segment segment = segments.get(low);
+        long[] entry = segment.index.lookup(offset - segment.baseOffset);
+        long position = skip(segment, entry[1], offset - segment.baseOffset - entry[0]);
+        return new LogCursor(this, low, position);
+    }
+
+    /**
+     * 从 position 开始跳过 count 条消息，返回之后的文件位置。最多扫描 indexIntervalBytes 左右的数据
+     */
+    private static long skip(Segment segment, long position, long count) throws IOException {
+        if (count == 0) {
+            return position;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(4096);
+        long end = segment.committedSize;
+        while (position < end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), end - position));
+            int read = segment.channel.read(buffer, position);
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n' && --count == 0) {
+                    return position + i + 1;
+                }
+            }
+            position += read;
+        }
+        return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Append append;
+        while ((append = queue.poll()) != null) {
+            append.future.completeExceptionally(new IOException("log closed"));
+        }
+        for (Segment segment : segments) {
+            segment.index.force();
+            segment.channel.close();
+        }
+    }
+
+    /**
+     * 一条等待写入的消息
+     */
+    private static class Append {
+        private final ByteBuffer payload;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Append(ByteBuffer payload) {
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * 一个段文件。committedSize / committedCount 是已经持久化的部分，可以被其他线程读取
+     */
+    static class Segment {
+        final long baseOffset;
+        final Path path;
+        final FileChannel channel;
+        final OffsetIndex index;
+        volatile long committedSize;
+        volatile long committedCount;
+        /**
+         * 距离上一条索引写入了多少字节，只由 log-flusher 线程使用
+         */
+        long bytesSinceIndex;
+
+        Segment(long baseOffset, Path path, FileChannel channel, OffsetIndex index, long size, long count) {
+            this.baseOffset = baseOffset;
+            this.path = path;
+            this.channel = channel;
+            this.index = index;
+            this.committedSize = size;
+            this.committedCount = count;
+        }
+
+        /**
+         * 已经持久化的字节数，其他线程（例如 LogCursor）通过这个方法读取
+         */
+        long committedSize() {
+            return committedSize;
+        }
+
+        /**
+         * 记录一条消息的位置，需要时追加索引
+         */
+        void indexRecord(long relativeOffset, long position, int length, int indexIntervalBytes) {
+            if (relativeOffset == 0 || bytesSinceIndex >= indexIntervalBytes) {
+                index.append((int) relativeOffset, (int) position);
+                bytesSinceIndex = 0;
+            }
+            bytesSinceIndex += length;
+        }
+    }
+
+    static String fileName(long baseOffset, String suffix) {
+        return String.format("%020d%s", baseOffset, suffix);
+    }
+
+    /**
+     * 打开已有的段。最后一个段可能在写入一半时崩溃，截掉最后一个 \n 之后的残缺内容，并重建它的索引
+     */
+    private void recover() throws IOException {
+        List<Long> baseOffsets = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                baseOffsets.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+            }
+        }
+        baseOffsets.sort(null);
+        for (int i = 0; i < baseOffsets.size(); i++) {
+            long baseOffset = baseOffsets.get(i);
+            Path path = dir.resolve(fileName(baseOffset, SUFFIX));
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            OffsetIndex index = new OffsetIndex(dir.resolve(fileName(baseOffset, INDEX_SUFFIX)), maxIndexEntries);
+            if (i < baseOffsets.size() - 1) {
+                index.load();
+                segments.add(new Segment(baseOffset, path, channel, index, channel.size(),
+                        baseOffsets.get(i + 1) - baseOffset));
+                continue;
+            }
+            Segment segment = new Segment(baseOffset, path, channel, index, 0, 0);
+            index.reset();
+            long[] scan = scan(segment);
+            channel.truncate(scan[0]);
+            segment.committedSize = scan[0];
+            segment.committedCount = scan[1];
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(openSegment(0));
+        }
+        log.debug("log recovered...dir = {}, segments = {}, endOffset = {}", dir, segments.size(), endOffset());
+    }
+
+    /**
+     * 扫描整个段，同时重建索引
+     *
+     * @return {最后一个完整消息的结束位置, 完整消息数}
+     */
+    private long[] scan(Segment segment) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        long position = 0;
+        long end = 0;
+        long count = 0;
+        int read;
+        while ((read = segment.channel.read(buffer, position)) > 0) {
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    long next = position + i + 1;
+                    segment.indexRecord(count, end, (int) (next - end), indexIntervalBytes);
+                    end = next;
+                    count++;
+                }
+            }
+            position += read;
+            buffer.clear();
+        }
+        return new long[]{end, count};
+    }
+
+    private Segment openSegment(long baseOffset) throws IOException {
+        Path path = dir.resolve(fileName(baseOffset, SUFFIX));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        OffsetIndex index = new OffsetIndex(dir.resolve(fileName(baseOffset, INDEX_SUFFIX)), maxIndexEntries);
+        index.reset();
+        return new Segment(baseOffset, path, channel, index, 0, 0);
+    }
+
+    private void flushLoop() {
+        List<Append> batch = new ArrayList<>(maxBatch);
+        ByteBuffer[] gather = new ByteBuffer[maxBatch * 2];
+        ByteBuffer[] newlines = new ByteBuffer[maxBatch];
+        for (int i = 0; i < maxBatch; i++) {
+            newlines[i] = NEWLINE.duplicate();
+        }
+        while (running || !queue.isEmpty()) {
+            try {
+                Append first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + maxDelayNanos;
+                while (batch.size() < maxBatch) {
+                    if (queue.drainTo(batch, maxBatch - batch.size()) > 0) {
+                        continue;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    Append next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            try {
+                write(batch, gather, newlines);
+            } catch (IOException e) {
+                log.debug("log write failed...", e);
+                // 已经提交的消息的 future 已经完成，这里不会改变它们的结果
+                for (Append append : batch) {
+                    append.future.completeExceptionally(e);
+                }
+            }
+            for (Runnable listener : commitListeners) {
+                listener.run();
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * 把一批消息合并写入，段满了就先持久化当前段再切换到新段
+     */
+    private void write(List<Append> batch, ByteBuffer[] gather, ByteBuffer[] newlines) throws IOException {
+        Segment segment = segments.get(segments.size() - 1);
+        int from = 0;
+        int n = 0;
+        long bytes = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            Append append = batch.get(i);
+            int length = append.payload.remaining() + 1;
+            if (segment.committedSize + bytes + length > segmentBytes && segment.committedSize + bytes > 0) {
+                commit(segment, batch.subList(from, i), gather, n, bytes);
+                segment = openSegment(segment.baseOffset + segment.committedCount);
+                segments.add(segment);
+                from = i;
+                n = 0;
+                bytes = 0;
+            }
+            gather[n++] = append.payload;
+            ByteBuffer newline = newlines[n / 2];
+            newline.rewind();
+            gather[n++] = newline;
+            bytes += length;
+        }
+        commit(segment, batch.subList(from, batch.size()), gather, n, bytes);
+    }
+
+    /**
+     * 写入并持久化 appends，成功之后分配偏移量并完成它们的 future。
+     * 失败时把文件截回已提交的长度，写了一部分的数据不会在恢复时被当成已经提交的消息
+     */
+    private void commit(Segment segment, List<Append> appends, ByteBuffer[] gather, int n, long bytes) throws IOException {
+        if (n == 0) {
+            return;
+        }
+        FileChannel channel = segment.channel;
+        try {
+            channel.position(segment.committedSize);
+            long written = 0;
+            while (written < bytes) {
+                written += channel.write(gather, 0, n);
+            }
+            if (fsync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            try {
+                channel.truncate(segment.committedSize);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        long position = segment.committedSize;
+        long relativeOffset = segment.committedCount;
+        for (int i = 0; i < n; i += 2) {
+            int length = gather[i].limit() + 1;
+            segment.indexRecord(relativeOffset++, position, length, indexIntervalBytes);
+            position += length;
+        }
+        long baseOffset = segment.baseOffset + segment.committedCount;
+        segment.committedSize += bytes;
+        segment.committedCount += n / 2;
+        for (int i = 0; i < appends.size(); i++) {
+            appends.get(i).future.complete(baseOffset + i);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package edu.cqupt.nio.fileChannel;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 一个段的稀疏偏移量索引
+ *
+ * 每写入 indexInterval 字节左右记录一条 (相对偏移量, 文件位置)，每条 8 字节，
+ * 索引文件按最大条数预先分配并通过 FileChannel.map 映射到内存，查找时在映射的内存上二分查找，
+ * 找到不大于目标偏移量的最近一条，之后最多只需要在日志中向后扫描 indexInterval 字节。
+ *
+ * 只有 log-flusher 线程写入，其他线程通过 volatile 的 entries 读取已经写好的部分。
+ */
+class OffsetIndex {
+    private static final int ENTRY_SIZE = 8;
+
+    private final MappedByteBuffer buffer;
+    private final int maxEntries;
+    private volatile int entries;
+
+    OffsetIndex(Path path, int maxEntries) throws IOException {
+        this.maxEntries = maxEntries;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // 映射建立之后即使关闭 channel 也仍然有效
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) maxEntries * ENTRY_SIZE);
+        }
+    }
+
+    /**
+     * 从已有的索引文件中恢复条数：第一条一定是 (0, 0)，之后的每条文件位置都大于 0，遇到 0 说明是未使用的预分配空间
+     */
+    void load() {
+        int n = 1;
+        while (n < maxEntries && buffer.getInt(n * ENTRY_SIZE + 4) > 0) {
+            n++;
+        }
+        entries = n;
+    }
+
+    /**
+     * 清空索引，重新建立。旧内容也要清零，否则之后 load() 会把残留的条目当作有效索引
+     */
+    void reset() {
+        entries = 0;
+        for (int i = 0; i < maxEntries; i++) {
+            buffer.putLong(i * ENTRY_SIZE, 0);
+        }
+    }
+
+    /**
+     * 追加一条索引，relativeOffset 和 position 都必须比上一条大，索引满了就不再记录
+     */
+    void append(int relativeOffset, int position) {
+        int n = entries;
+        if (n == maxEntries) {
+            return;
+        }
+        buffer.putInt(n * ENTRY_SIZE, relativeOffset);
+        buffer.putInt(n * ENTRY_SIZE + 4, position);
+        entries = n + 1;
+    }
+
+    /**
+     * 二分查找相对偏移量不大于 relativeOffset 的最后一条索引
+     *
+     * @return {相对偏移量, 文件位置}，没有索引时返回段的开头 {0, 0}
+     */
+    long[] lookup(long relativeOffset) {
+        int low = 0;
+        int high = entries - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (buffer.getInt(middle * ENTRY_SIZE) <= relativeOffset) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found < 0) {
+            return new long[]{0, 0};
+        }
+        return new long[]{buffer.getInt(found * ENTRY_SIZE), buffer.getInt(found * ENTRY_SIZE + 4)};
+    }
+
+    void force() {
+        buffer.force();
+    }
+
+    int entries() {
+        return entries;
+    }
+}
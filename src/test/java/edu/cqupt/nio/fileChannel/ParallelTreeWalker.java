@@ -0,0 +1,265 @@
+package edu.cqupt.nio.fileChannel;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 并行遍历文件夹
+ *
+ * Files.walkFileTree 只用一个线程按顺序访问，这里每个文件夹是一个 ForkJoin 任务，
+ * 子文件夹 fork 出去由空闲线程窃取，当前线程继续处理本文件夹中的文件。
+ * 一个文件夹的所有子任务 join 之后才会调用 postVisitDirectory，所以删除文件夹这种后序操作也是安全的。
+ *
+ * 注意：Visitor 的方法会被多个线程同时调用，实现需要是线程安全的。
+ */
+public class ParallelTreeWalker {
+    private final ForkJoinPool pool;
+
+    public ParallelTreeWalker(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 和 FileVisitor 类似的观察者，但是会被并发调用
+     */
+    public interface Visitor {
+        default void preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        }
+
+        default void visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        }
+
+        /**
+         * 文件夹中的所有内容（包括子文件夹）都访问完之后调用
+         */
+        default void postVisitDirectory(Path dir) throws IOException {
+        }
+
+        /**
+         * 整个遍历结束之后在调用 walk 的线程中调用一次
+         */
+        default void done() {
+        }
+    }
+
+    public void walk(Path root, Visitor visitor) throws IOException {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(root, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            if (attrs.isDirectory()) {
+                pool.invoke(new DirectoryTask(root, attrs, visitor));
+            } else {
+                visitor.visitFile(root, attrs);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            visitor.done();
+        }
+    }
+
+    private static class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path dir;
+        private final BasicFileAttributes attrs;
+        private final Visitor visitor;
+
+        DirectoryTask(Path dir, BasicFileAttributes attrs, Visitor visitor) {
+            this.dir = dir;
+            this.attrs = attrs;
+            this.visitor = visitor;
+        }
+
+        @Override
+        protected void compute() {
+            try {
+                visitor.preVisitDirectory(dir, attrs);
+                List<DirectoryTask> children = new ArrayList<>();
+                try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                    for (Path path : stream) {
+                        // 不跟随符号链接，链接本身当作文件处理
+                        BasicFileAttributes childAttrs = Files.readAttributes(path, BasicFileAttributes.class,
+                                LinkOption.NOFOLLOW_LINKS);
+                        if (childAttrs.isDirectory()) {
+                            DirectoryTask child = new DirectoryTask(path, childAttrs, visitor);
+                            child.fork();
+                            children.add(child);
+                        } else {
+                            visitor.visitFile(path, childAttrs);
+                        }
+                    }
+                }
+                for (DirectoryTask child : children) {
+                    child.join();
+                }
+                visitor.postVisitDirectory(dir);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * 统计文件夹数、文件数、总字节数，以及按 2 的幂分桶的文件大小分布
+     */
+    public static class CountingVisitor implements Visitor {
+        private final LongAdder directories = new LongAdder();
+        private final LongAdder files = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+        /**
+         * histogram[i] 为大小在 [2^(i-1), 2^i) 之间的文件数，histogram[0] 为空文件
+         */
+        private final LongAdder[] histogram = new LongAdder[64];
+
+        public CountingVisitor() {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] = new LongAdder();
+            }
+        }
+
+        @Override
+        public void preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            directories.increment();
+        }
+
+        @Override
+        public void visitFile(Path file, BasicFileAttributes attrs) {
+            files.increment();
+            long size = attrs.size();
+            bytes.add(size);
+            histogram[64 - Long.numberOfLeadingZeros(size)].increment();
+        }
+
+        public long directories() {
+            return directories.sum();
+        }
+
+        public long files() {
+            return files.sum();
+        }
+
+        public long bytes() {
+            return bytes.sum();
+        }
+
+        public long[] histogram() {
+            long[] result = new long[histogram.length];
+            for (int i = 0; i < histogram.length; i++) {
+                result[i] = histogram[i].sum();
+            }
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append("文件夹总数：").append(directories()).append(", 文件总数：").append(files())
+                    .append(", 总字节数：").append(bytes());
+            long[] counts = histogram();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    builder.append("\n  < ").append(i == 0 ? 1 : 1L << i).append(" B: ").append(counts[i]);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * 后序删除：先删除文件，文件夹中的内容都删除之后再删除文件夹本身
+     */
+    public static class DeleteVisitor implements Visitor {
+        private final LongAdder deleted = new LongAdder();
+
+        @Override
+        public void visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+            Files.delete(file);
+            deleted.increment();
+        }
+
+        @Override
+        public void postVisitDirectory(Path dir) throws IOException {
+            Files.delete(dir);
+            deleted.increment();
+        }
+
+        public long deleted() {
+            return deleted.sum();
+        }
+    }
+
+    /**
+     * 打印访问到的路径
+     *
+     * 每个线程先把输出攒在自己的 StringBuilder 中，超过 batchSize 个字符才加锁写一次，
+     * 避免每个路径都去竞争 System.out 的锁。out 为 null 时关闭输出。
+     */
+    public static class PrintingVisitor implements Visitor {
+        private final PrintStream out;
+        private final int batchSize;
+        private final List<StringBuilder> buffers = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<StringBuilder> buffer = ThreadLocal.withInitial(() -> {
+            StringBuilder builder = new StringBuilder();
+            buffers.add(builder);
+            return builder;
+        });
+
+        public PrintingVisitor(PrintStream out, int batchSize) {
+            this.out = out;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        public void preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            print("进入文件夹===》", dir);
+        }
+
+        @Override
+        public void visitFile(Path file, BasicFileAttributes attrs) {
+            print("", file);
+        }
+
+        private void print(String prefix, Path path) {
+            if (out == null) {
+                return;
+            }
+            StringBuilder builder = buffer.get();
+            synchronized (builder) {
+                builder.append(prefix).append(path).append('\n');
+                if (builder.length() >= batchSize) {
+                    flush(builder);
+                }
+            }
+        }
+
+        private void flush(StringBuilder builder) {
+            out.print(builder);
+            builder.setLength(0);
+        }
+
+        @Override
+        public void done() {
+            if (out == null) {
+                return;
+            }
+            for (StringBuilder builder : buffers) {
+                synchronized (builder) {
+                    flush(builder);
+                }
+            }
+            out.flush();
+        }
+    }
+}
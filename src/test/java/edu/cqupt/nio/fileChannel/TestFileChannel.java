@@ -1,20 +1,37 @@
 package edu.cqupt.nio.fileChannel;
 
-import com.sun.deploy.util.SyncFileAccess;
 import org.junit.Test;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 /**
  * @author LWenH
@@ -103,24 +120,464 @@ public class TestFileChannel {
         });
     }
 
+    /**
+     * 使用 DirectoryCopier 并行复制整个文件夹，大文件按区间并行复制
+     */
+    @Test
+    public void testDirectoryCopier() throws IOException {
+        Path source = Files.createTempDirectory("copy-source");
+        Path target = Files.createTempDirectory("copy-target").resolve("copy");
+        try {
+            Random random = new Random(7);
+            for (int i = 0; i < 4; i++) {
+                Path dir = Files.createDirectories(source.resolve("dir-" + i).resolve("sub"));
+                for (int j = 0; j < 5; j++) {
+                    byte[] bytes = new byte[random.nextInt(4096)];
+                    random.nextBytes(bytes);
+                    Files.write(dir.resolve("file-" + j), bytes);
+                }
+            }
+            byte[] large = new byte[1024 * 1024 + 123];
+            random.nextBytes(large);
+            Files.write(source.resolve("large.bin"), large);
+
+            DirectoryCopier copier = new DirectoryCopier(ForkJoinPool.commonPool(), 4, 64 * 1024);
+            DirectoryCopier.Progress progress = copier.copy(source, target);
+            System.out.println(progress);
+            assertEquals(21, progress.files());
+            assertEquals(9, progress.directories());
+            assertArrayEquals(large, Files.readAllBytes(target.resolve("large.bin")));
+            assertArrayEquals(Files.readAllBytes(source.resolve("dir-3/sub/file-4")),
+                    Files.readAllBytes(target.resolve("dir-3/sub/file-4")));
+
+            // 目标已经存在时再次复制会覆盖
+            copier.copy(source, target);
+            assertArrayEquals(large, Files.readAllBytes(target.resolve("large.bin")));
+
+            // 线程池只有 2 个线程、只有 1 个许可：等待许可的线程不能把遍历也堵住
+            ForkJoinPool small = new ForkJoinPool(2);
+            try {
+                new DirectoryCopier(small, 1, 64 * 1024).copy(source, target);
+                assertArrayEquals(large, Files.readAllBytes(target.resolve("large.bin")));
+            } finally {
+                small.shutdown();
+            }
+        } finally {
+            deleteTree(source);
+            deleteTree(target.getParent());
+        }
+    }
+
+    /**
+     * 使用 DirectorySync 增量同步：只复制变化的文件，删除源中已经没有的文件
+     */
+    @Test
+    public void testDirectorySync() throws IOException {
+        Path source = Files.createTempDirectory("sync-source");
+        Path target = Files.createTempDirectory("sync-target");
+        try {
+            for (int i = 0; i < 3; i++) {
+                Path dir = Files.createDirectories(source.resolve("dir-" + i));
+                for (int j = 0; j < 4; j++) {
+                    Files.write(dir.resolve("file-" + j), ("content " + i + j).getBytes());
+                }
+            }
+            DirectorySync sync = new DirectorySync(new DirectoryCopier(ForkJoinPool.commonPool(), 4, 1024 * 1024), true);
+            DirectorySync.Result result = sync.sync(source, target);
+            System.out.println(result);
+            assertEquals(12, result.copied());
+
+            // 没有变化，不复制也不计算摘要
+            result = sync.sync(source, target);
+            assertEquals(0, result.copied());
+            assertEquals(12, result.unchanged());
+            assertEquals(0, result.hashed());
+
+            // 1. 内容改变 2. 只修改时间改变 3. 删除文件和文件夹
+            Files.write(source.resolve("dir-0/file-0"), "changed content".getBytes());
+            Path touched = source.resolve("dir-1/file-1");
+            Files.setLastModifiedTime(touched, FileTime.fromMillis(Files.getLastModifiedTime(touched).toMillis() + 5000));
+            Files.delete(source.resolve("dir-2/file-3"));
+            Files.delete(source.resolve("dir-2/file-2"));
+            Files.delete(source.resolve("dir-2/file-1"));
+            Files.delete(source.resolve("dir-2/file-0"));
+            Files.delete(source.resolve("dir-2"));
+            result = sync.sync(source, target);
+            System.out.println(result);
+            assertEquals(1, result.copied());
+            assertEquals(1, result.hashed());
+            assertEquals(5, result.deleted());
+            assertEquals("changed content", new String(Files.readAllBytes(target.resolve("dir-0/file-0"))));
+            assertEquals(false, Files.exists(target.resolve("dir-2")));
+
+            // 4. 文件变成文件夹，文件夹变成文件（目标文件夹中还有不受索引管理的文件）
+            Files.delete(source.resolve("dir-0/file-3"));
+            Files.createFile(Files.createDirectories(source.resolve("dir-0/file-3")).resolve("inner"));
+            Files.write(target.resolve("dir-1/unmanaged"), "unmanaged".getBytes());
+            for (int j = 0; j < 4; j++) {
+                Files.delete(source.resolve("dir-1/file-" + j));
+            }
+            Files.delete(source.resolve("dir-1"));
+            Files.write(source.resolve("dir-1"), "now a file".getBytes());
+            result = sync.sync(source, target);
+            System.out.println(result);
+            assertEquals(true, Files.isDirectory(target.resolve("dir-0/file-3")));
+            assertEquals(true, Files.exists(target.resolve("dir-0/file-3/inner")));
+            assertEquals("now a file", new String(Files.readAllBytes(target.resolve("dir-1"))));
+
+            // 5. 索引不完整时当作没有索引，重新比较所有文件
+            Path index = target.resolve(DirectorySync.INDEX_FILE);
+            byte[] bytes = Files.readAllBytes(index);
+            Files.write(index, Arrays.copyOf(bytes, bytes.length / 2));
+            assertEquals(0, DirectorySync.readIndex(index).size());
+            result = sync.sync(source, target);
+            assertEquals(5, result.copied());
+            assertEquals(0, sync.sync(source, target).copied());
+        } finally {
+            deleteTree(source);
+            deleteTree(target);
+        }
+    }
+
+    /**
+     * 对比：单线程 Files.walkFileTree vs ParallelTreeWalker 统计文件夹，之后并行后序删除
+     *
+     * 两种方式交替先后跑几轮，第一轮只用来预热（类加载、JIT、目录项缓存），不计时；
+     * 之后每轮交换先后顺序，避免后跑的一方总是沾到前一方留下的缓存
+     *
+     * 文件夹数量可以通过 -Dbench.dirs=2000 调整
+     */
+    @Test
+    public void testParallelTreeWalker() throws IOException {
+        int dirs = Integer.getInteger("bench.dirs", 200);
+        Path root = Files.createTempDirectory("walk");
+        for (int i = 0; i < dirs; i++) {
+            Path dir = Files.createDirectories(root.resolve("dir-" + i % 10).resolve("dir-" + i));
+            for (int j = 0; j < 20; j++) {
+                Files.write(dir.resolve("file-" + j), new byte[j * 100]);
+            }
+        }
+
+        ParallelTreeWalker walker = new ParallelTreeWalker(ForkJoinPool.commonPool());
+        AtomicInteger dirsCount = new AtomicInteger();
+        AtomicInteger filesCount = new AtomicInteger();
+        ParallelTreeWalker.CountingVisitor counter = null;
+        for (int round = 0; round < 5; round++) {
+            boolean sequentialFirst = round % 2 == 0;
+            long sequential = 0;
+            long parallel = 0;
+            for (int turn = 0; turn < 2; turn++) {
+                long begin = System.nanoTime();
+                if (sequentialFirst == (turn == 0)) {
+                    dirsCount.set(0);
+                    filesCount.set(0);
+                    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                            dirsCount.incrementAndGet();
+                            return FileVisitResult.CONTINUE;
+                        }
+
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                            filesCount.incrementAndGet();
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                    sequential = System.nanoTime() - begin;
+                } else {
+                    counter = new ParallelTreeWalker.CountingVisitor();
+                    walker.walk(root, counter);
+                    parallel = System.nanoTime() - begin;
+                }
+            }
+            if (round > 0) {
+                System.out.println("round " + round + (sequentialFirst ? " (walkFileTree first)" : " (parallel first)")
+                        + ": walkFileTree " + sequential / 1000 + " us, parallel walk " + parallel / 1000 + " us");
+            }
+        }
+        System.out.println(counter);
+        assertEquals(dirsCount.get(), counter.directories());
+        assertEquals(filesCount.get(), counter.files());
+
+        // 打印：每个文件夹和文件各一行，各线程攒的输出在 done() 时全部写出
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        walker.walk(root, new ParallelTreeWalker.PrintingVisitor(new PrintStream(printed, true, "UTF-8"), 1024));
+        String[] lines = new String(printed.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(dirsCount.get() + filesCount.get(), lines.length);
+        int entered = 0;
+        for (String line : lines) {
+            if (line.startsWith("进入文件夹===》")) {
+                entered++;
+            }
+        }
+        assertEquals(dirsCount.get(), entered);
+
+        ParallelTreeWalker.DeleteVisitor deleter = new ParallelTreeWalker.DeleteVisitor();
+        long begin = System.nanoTime();
+        walker.walk(root, deleter);
+        System.out.println("parallel delete: " + (System.nanoTime() - begin) / 1000000 + " ms");
+        assertEquals(dirsCount.get() + filesCount.get(), deleter.deleted());
+        assertEquals(false, Files.exists(root));
+    }
+
+    /**
+     * MessageLog 分段追加、重启恢复，以及通过稀疏索引从任意偏移量开始 transferTo
+     */
+    @Test
+    public void testMessageLog() throws Exception {
+        Path dir = Files.createTempDirectory("message-log");
+        try {
+            try (MessageLog messageLog = new MessageLog(dir, 1024, 16, 0, true, 64)) {
+                CompletableFuture<Long> last = null;
+                for (int i = 0; i < 500; i++) {
+                    last = messageLog.append(StandardCharsets.UTF_8.encode("message-" + i));
+                }
+                assertEquals(499L, (long) last.get());
+            }
+            try (MessageLog messageLog = new MessageLog(dir, 1024, 16, 0, true, 64)) {
+                assertEquals(500, messageLog.endOffset());
+                assertEquals(500L, (long) messageLog.append(StandardCharsets.UTF_8.encode("message-500")).get());
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                LogCursor cursor = messageLog.cursor(123);
+                while (!cursor.caughtUp()) {
+                    cursor.transferTo(Channels.newChannel(out));
+                }
+                String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+                assertEquals(378, lines.length);
+                assertEquals("message-123", lines[0]);
+                assertEquals("message-500", lines[377]);
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * LogCursor 追到日志末尾时日志切换了段：旧段最后一批消息在添加新段之前提交，游标不能跳过它们
+     *
+     * 用一个 Segment 子类重现竞争：游标读到旧的 committedSize 之后，写入线程提交了 bbbb 并切换到新段
+     */
+    @Test
+    public void testLogCursorFollowsSegmentRoll() throws Exception {
+        Path dir = Files.createTempDirectory("message-log");
+        try (MessageLog messageLog = new MessageLog(dir, 1024, 16, 0, false, 64)) {
+            assertEquals(0L, (long) messageLog.append(StandardCharsets.UTF_8.encode("aaaa")).get());
+            LogCursor cursor = messageLog.cursor(0);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            WritableByteChannel target = Channels.newChannel(out);
+            while (!cursor.caughtUp()) {
+                cursor.transferTo(target);
+            }
+            assertEquals(1L, (long) messageLog.append(StandardCharsets.UTF_8.encode("bbbb")).get());
+
+            List<MessageLog.Segment> segments = messageLog.segments();
+            MessageLog.Segment current = segments.get(0);
+            Path nextPath = dir.resolve(MessageLog.fileName(2, ".log"));
+            MessageLog.Segment next = new MessageLog.Segment(2, nextPath,
+                    FileChannel.open(nextPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE),
+                    new OffsetIndex(dir.resolve(MessageLog.fileName(2, ".index")), 16), 0, 0);
+            segments.set(0, new MessageLog.Segment(current.baseOffset, current.path, current.channel, current.index,
+                    current.committedSize, current.committedCount) {
+                private boolean raced;
+
+                @Override
+                long committedSize() {
+                    if (raced) {
+                        return super.committedSize();
+                    }
+                    raced = true;
+                    // 游标读到的还是 aaaa 之后的位置，这之后才添加新段
+                    segments.add(next);
+                    return 5;
+                }
+            });
+
+            // 第一次读 committedSize() 的必须是 transferTo()
+            do {
+                cursor.transferTo(target);
+            } while (!cursor.caughtUp());
+            assertEquals("aaaa\nbbbb\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * MessageLog 提交失败：同一批中已经提交到前一个段的消息照常完成，失败的消息不占用偏移量
+     *
+     * 在下一个段的文件名处先放一个文件夹，切换段时打开文件失败
+     */
+    @Test
+    public void testMessageLogFailedCommit() throws Exception {
+        Path dir = Files.createTempDirectory("message-log");
+        try {
+            // 每个段最多放两条 "xxxx\n"，一批最多等 200ms，连续 append 的消息会进入同一批
+            try (MessageLog messageLog = new MessageLog(dir, 10, 16, 200_000, true, 64)) {
+                assertEquals(0L, (long) messageLog.append(StandardCharsets.UTF_8.encode("aaaa")).get());
+                Path blocker = Files.createDirectory(dir.resolve(MessageLog.fileName(2, ".log")));
+                CompletableFuture<Long> b = messageLog.append(StandardCharsets.UTF_8.encode("bbbb"));
+                CompletableFuture<Long> c = messageLog.append(StandardCharsets.UTF_8.encode("cccc"));
+                assertEquals(1L, (long) b.get());
+                try {
+                    c.get();
+                    fail("cccc should not be committed");
+                } catch (ExecutionException e) {
+                    assertEquals(true, e.getCause() instanceof IOException);
+                }
+                assertEquals(2, messageLog.endOffset());
+
+                Files.delete(blocker);
+                assertEquals(2L, (long) messageLog.append(StandardCharsets.UTF_8.encode("dddd")).get());
+                assertEquals(3, messageLog.endOffset());
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                LogCursor cursor = messageLog.cursor(0);
+                while (!cursor.caughtUp()) {
+                    cursor.transferTo(Channels.newChannel(out));
+                }
+                assertEquals("aaaa\nbbbb\ndddd\n", new String(out.toByteArray(), StandardCharsets.UTF_8));
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    /**
+     * MessageLog 拒绝包含 \n 的消息；和 close() 同时 append 的消息都会结束，要么提交成功，要么以 IOException 失败
+     */
+    @Test
+    public void testMessageLogAppendRejectsNewlineAndRacesClose() throws Exception {
+        Path dir = Files.createTempDirectory("message-log");
+        try {
+            for (int round = 0; round < 20; round++) {
+                MessageLog messageLog = new MessageLog(dir.resolve("round-" + round), 1 << 20, 16, 0, false, 4096);
+                try {
+                    messageLog.append(StandardCharsets.UTF_8.encode("two\nlines"));
+                    fail("accepted a payload containing \\n");
+                } catch (IllegalArgumentException expected) {
+                }
+                List<CompletableFuture<Long>> futures = new CopyOnWriteArrayList<>();
+                Thread[] producers = new Thread[2];
+                for (int p = 0; p < producers.length; p++) {
+                    producers[p] = new Thread(() -> {
+                        for (int i = 0; i < 2000; i++) {
+                            futures.add(messageLog.append(StandardCharsets.UTF_8.encode("message-" + i)));
+                        }
+                    });
+                    producers[p].start();
+                }
+                Thread.sleep(1);
+                messageLog.close();
+                for (Thread producer : producers) {
+                    producer.join();
+                }
+                for (CompletableFuture<Long> future : futures) {
+                    try {
+                        future.get(5, TimeUnit.SECONDS);
+                    } catch (ExecutionException e) {
+                        assertEquals(true, e.getCause() instanceof IOException);
+                    }
+                }
+            }
+        } finally {
+            deleteTree(dir);
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
     /**
      * 测试fileChannel transferTo
      */
     @Test
-    public void testTransferTo() {
-        String formFile = this.getClass().getClassLoader().getResource("data.txt").getFile();
-        try (FileChannel to = new FileOutputStream("to.txt").getChannel();
-             FileChannel form = new FileInputStream(formFile).getChannel()) {
-            // 文件的总大小
-            long size = form.size();
-            for (long left = size; left > 0; ) {
-                System.out.println("position:" + (size - left) + " left:" + left);
-                left -= form.transferTo(size - left, left, to);
-                System.out.println("position:" + (size - left) + " left:" + left);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+    public void testTransferTo() throws Exception {
+        // getFile() 得到的是 URL 编码后的路径，路径中有空格或中文时会找不到文件
+        Path from = Paths.get(this.getClass().getClassLoader().getResource("data.txt").toURI());
+        Path to = Files.createTempFile("to", ".txt");
+        try {
+            LargeFileTransfer transfer = new LargeFileTransfer(ForkJoinPool.commonPool(), 1024 * 1024, true);
+            System.out.println(transfer.copy(from, to, LargeFileTransfer.Strategy.TRANSFER_TO));
+            assertArrayEquals(Files.readAllBytes(from), Files.readAllBytes(to));
+        } finally {
+            Files.delete(to);
+        }
+    }
+
+    /**
+     * 使用 LargeFileTransfer 按区间并行复制大文件，比较三种复制方式的吞吐量，并用并行计算的 CRC32 校验
+     *
+     * -Dbench.fileMb=文件大小，默认 4MB，只验证正确性；比较吞吐量时调大（例如 256），超过 2048 可以验证 2GB 以上的文件
+     */
+    @Test
+    public void testLargeFileTransfer() throws IOException, InterruptedException {
+        long size = Long.getLong("bench.fileMb", 4) * 1024 * 1024 + 12345;
+        Path dir = Files.createTempDirectory("large-file");
+        try {
+            Path source = dir.resolve("source.bin");
+            Random random = new Random(11);
+            byte[] block = new byte[1024 * 1024];
+            CRC32 expected = new CRC32();
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                for (long written = 0; written < size; ) {
+                    random.nextBytes(block);
+                    ByteBuffer buffer = ByteBuffer.wrap(block, 0, (int) Math.min(block.length, size - written));
+                    expected.update(block, 0, buffer.remaining());
+                    written += buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            }
+
+            // 大约切成 8 个区间，文件很小时也会并行复制多个区间
+            LargeFileTransfer transfer = new LargeFileTransfer(ForkJoinPool.commonPool(),
+                    Math.max(1024 * 1024, Long.highestOneBit(size / 8)), true);
+            assertEquals(expected.getValue(), transfer.checksum(source));
+            for (LargeFileTransfer.Strategy strategy : LargeFileTransfer.Strategy.values()) {
+                Path target = dir.resolve(strategy.name().toLowerCase() + ".bin");
+                LargeFileTransfer.Result result = transfer.copy(source, target, strategy);
+                System.out.println(result);
+                assertEquals(size, Files.size(target));
+                assertEquals(expected.getValue(), transfer.checksum(target));
+            }
+        } finally {
+            deleteMappedTree(dir);
         }
+    }
 
+    /**
+     * MMAP 复制过的文件在映射被 GC 回收之前，Windows 上无法删除：删除失败时触发 GC 再重试，
+     * 最后还是删不掉就留在临时目录中
+     */
+    private static void deleteMappedTree(Path root) throws InterruptedException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                deleteTree(root);
+                return;
+            } catch (IOException e) {
+                if (attempt == 10) {
+                    System.out.println("leave " + root + ": " + e);
+                    return;
+                }
+                System.gc();
+                Thread.sleep(100);
+            }
+        }
     }
 }
@@ -0,0 +1,146 @@
+package edu.cqupt.nio.network;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个worker的发送限速，只在worker线程中使用
+ *
+ * 1. 每个连接一个令牌桶，限制单个连接的发送速度；worker一个令牌桶，限制这个worker上所有连接加起来的发送速度
+ * 2. 连接每次写之前取两个桶中较少的令牌数作为这次最多能写的字节数，写完按实际写出的字节数扣除
+ * 3. 令牌用完时连接取消关注可写事件，登记一个到期时间，不会 sleep 阻塞事件循环；
+ *    worker的 select() 以最早的到期时间作为超时时间，到期后恢复连接的发送
+ *
+ * 一个大文件下载最多只能用掉单个连接的带宽，同一个worker上交互式连接的小消息不会排在大量积压的数据后面。
+ *
+ * -Dnio.shape.connectionBytesPerSecond=单个连接每秒最多发送的字节数
+ * -Dnio.shape.workerBytesPerSecond=单个worker每秒最多发送的字节数
+ * -Dnio.shape.burstBytes=令牌桶的容量，即允许的突发字节数，默认 64KB
+ */
+class BandwidthShaper {
+    /**
+     * 令牌用完之后至少攒够这么多再恢复发送，避免每次只写几个字节
+     */
+    private static final long MIN_RESUME_BYTES = 4096;
+
+    private final long connectionBytesPerSecond;
+    private final long burstBytes;
+    /**
+     * 为 null 时不限制worker的总速度
+     */
+    private final TokenBucket workerBucket;
+    private final PriorityQueue<Throttled> timers =
+            new PriorityQueue<>(Comparator.comparingLong((Throttled t) -> t.resumeAt));
+
+    /**
+     * @param connectionBytesPerSecond 小于等于 0 时不限制单个连接
+     * @param workerBytesPerSecond     小于等于 0 时不限制worker
+     */
+    BandwidthShaper(long connectionBytesPerSecond, long workerBytesPerSecond, long burstBytes) {
+        this(connectionBytesPerSecond, workerBytesPerSecond, burstBytes, System.nanoTime());
+    }
+
+    /**
+     * @param now 当前时间，和之后传入的 now 使用同一个时钟（System.nanoTime()）
+     */
+    BandwidthShaper(long connectionBytesPerSecond, long workerBytesPerSecond, long burstBytes, long now) {
+        this.connectionBytesPerSecond = connectionBytesPerSecond;
+        this.burstBytes = burstBytes;
+        this.workerBucket = workerBytesPerSecond > 0
+                ? new TokenBucket(workerBytesPerSecond, burstBytes, now) : null;
+    }
+
+    /**
+     * 每次调用都创建一个新的 BandwidthShaper，每个worker一个
+     *
+     * @return 没有设置限速时返回 null
+     */
+    static BandwidthShaper fromSystemProperties() {
+        long connection = Long.getLong("nio.shape.connectionBytesPerSecond", 0);
+        long worker = Long.getLong("nio.shape.workerBytesPerSecond", 0);
+        if (connection <= 0 && worker <= 0) {
+            return null;
+        }
+        return new BandwidthShaper(connection, worker, Long.getLong("nio.shape.burstBytes", 64 * 1024));
+    }
+
+    /**
+     * @return 不限制单个连接时返回 null
+     */
+    TokenBucket newConnectionBucket(long now) {
+        return connectionBytesPerSecond > 0
+                ? new TokenBucket(connectionBytesPerSecond, burstBytes, now) : null;
+    }
+
+    /**
+     * 这次最多能写的字节数
+     */
+    long allowance(TokenBucket connectionBucket, long now) {
+        long allowance = Long.MAX_VALUE;
+        if (connectionBucket != null) {
+            allowance = connectionBucket.available(now);
+        }
+        if (workerBucket != null) {
+            allowance = Math.min(allowance, workerBucket.available(now));
+        }
+        return allowance;
+    }
+
+    void consume(TokenBucket connectionBucket, long bytes) {
+        if (connectionBucket != null) {
+            connectionBucket.consume(bytes);
+        }
+        if (workerBucket != null) {
+            workerBucket.consume(bytes);
+        }
+    }
+
+    /**
+     * 令牌不够时登记连接，攒够令牌之后调用 resume（Connection 传入 resumeWrite()）
+     */
+    void throttle(Runnable resume, TokenBucket connectionBucket, long now) {
+        long wait = 0;
+        if (connectionBucket != null) {
+            wait = connectionBucket.nanosUntil(MIN_RESUME_BYTES, now);
+        }
+        if (workerBucket != null) {
+            wait = Math.max(wait, workerBucket.nanosUntil(MIN_RESUME_BYTES, now));
+        }
+        timers.add(new Throttled(now + wait, resume));
+    }
+
+    /**
+     * select() 的超时时间
+     *
+     * @return 0 表示没有被限速的连接，可以一直阻塞
+     */
+    long timeoutMillis(long now) {
+        Throttled head = timers.peek();
+        if (head == null) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(head.resumeAt - now + 999_999));
+    }
+
+    /**
+     * 恢复到期的连接，在每一轮事件循环的最后调用
+     */
+    void resumeDue(long now) {
+        Throttled head;
+        while ((head = timers.peek()) != null && head.resumeAt - now <= 0) {
+            timers.poll();
+            head.resume.run();
+        }
+    }
+
+    private static class Throttled {
+        final long resumeAt;
+        final Runnable resume;
+
+        Throttled(long resumeAt, Runnable resume) {
+            this.resumeAt = resumeAt;
+            this.resume = resume;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package edu.cqupt.nio.network;
+
+import edu.cqupt.nio.byteBuffer.utils.ByteBufferPool;
+import edu.cqupt.nio.byteBuffer.utils.RefCountedBuffer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 把一条消息广播给所有worker上的所有连接
+ *
+ * 1. 消息只编码（复制）一次，放进一个带引用计数的直接内存缓冲区
+ * 2. 每个worker在自己的线程中，为每个连接 retain() 一次并把只读视图放进连接的 outbound 队列
+ * 3. 连接写完这条消息（或者连接关闭）时 release()，最后一个连接写完后缓冲区回到池子
+ *
+ * 慢订阅者：连接 outbound 中积压的字节数超过 maxPendingBytes 时，按 policy 丢弃这条消息或者断开连接，
+ * 避免一个读得慢的客户端让服务器无限制地堆积内存。
+ */
+@Slf4j
+class Broadcaster {
+    enum SlowSubscriberPolicy {
+        /**
+         * 这个连接收不到这条消息
+         */
+        DROP,
+        /**
+         * 断开这个连接
+         */
+        DISCONNECT
+    }
+
+    private final MultiThreadSelectorServer.Worker[] workers;
+    private final ByteBufferPool bufferPool;
+    private final long maxPendingBytes;
+    private final SlowSubscriberPolicy policy;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+
+    /**
+     * @param workers 广播的范围，数组中的worker可以在之后再创建
+     */
+    Broadcaster(MultiThreadSelectorServer.Worker[] workers, int bufferSize, long maxPendingBytes,
+                SlowSubscriberPolicy policy) {
+        this.workers = workers;
+        this.bufferPool = new ByteBufferPool(bufferSize, true, 256);
+        this.maxPendingBytes = maxPendingBytes;
+        this.policy = policy;
+    }
+
+    /**
+     * -Dnio.broadcast.maxPendingBytes=单个连接最多积压的字节数，默认 1MB
+     * -Dnio.broadcast.policy=drop|disconnect，默认 drop
+     */
+    static Broadcaster fromSystemProperties(MultiThreadSelectorServer.Worker[] workers) {
+        return new Broadcaster(workers, 1024,
+                Long.getLong("nio.broadcast.maxPendingBytes", 1024 * 1024),
+                SlowSubscriberPolicy.valueOf(System.getProperty("nio.broadcast.policy", "drop").toUpperCase()));
+    }
+
+    /**
+     * 广播一条消息（不含 \n），可以在任意线程中调用
+     */
+    void publish(ByteBuffer message) {
+        int size = message.remaining() + 1;
+        ByteBuffer buffer = size <= bufferPool.bufferSize() ? bufferPool.acquire() : ByteBuffer.allocateDirect(size);
+        buffer.put(message.duplicate()).put((byte) '\n').flip();
+        RefCountedBuffer shared = new RefCountedBuffer(buffer, bufferPool);
+        for (MultiThreadSelectorServer.Worker worker : workers) {
+            if (worker != null && worker.isInitialized()) {
+                worker.broadcast(this, shared.retain());
+            }
+        }
+        // 释放发布者自己持有的引用
+        shared.release();
+    }
+
+    /**
+     * 在worker线程中调用，把共享内容放入这个worker上每个连接的发送队列
+     */
+    void deliver(Set<SelectionKey> keys, RefCountedBuffer shared) {
+        for (SelectionKey key : keys) {
+            Object attachment = key.attachment();
+            if (!key.isValid() || !(attachment instanceof Connection)) {
+                continue;
+            }
+            Connection connection = (Connection) attachment;
+            if (connection.subscribing()) {
+                continue;
+            }
+            if (connection.pendingBytes() + shared.size() > maxPendingBytes) {
+                if (policy == SlowSubscriberPolicy.DROP) {
+                    dropped.increment();
+                } else {
+                    log.debug("slow subscriber disconnected...{}", connection.channel);
+                    disconnected.increment();
+                    connection.close();
+                }
+                continue;
+            }
+            connection.sendShared(shared.retain());
+        }
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    long disconnected() {
+        return disconnected.sum();
+    }
+}
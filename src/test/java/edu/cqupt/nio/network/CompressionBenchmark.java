@@ -0,0 +1,89 @@
+package edu.cqupt.nio.network;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * 对比不同的压缩方式在网络上的字节数和 CPU 耗时，并检查解压之后和原始数据一致
+ *
+ * 数据有两种：WriteServer 中重复度很高的文本，以及几乎无法压缩的随机数据（例如已经压缩过的图片）。
+ * 消息逐条交给编码器，产生的块再分成小段交给解码器，模拟 TCP 的任意拆包。
+ *
+ * -Dbench.frames=每种数据的消息条数，默认 20000
+ */
+public class CompressionBenchmark {
+    @Test
+    public void testCompression() throws IOException {
+        int frames = Integer.getInteger("bench.frames", 20000);
+        byte[][] text = new byte[frames][];
+        byte[][] random = new byte[frames][];
+        Random rnd = new Random(42);
+        for (int i = 0; i < frames; i++) {
+            StringBuilder frame = new StringBuilder();
+            int words = 16 + rnd.nextInt(32);
+            for (int j = 0; j < words; j++) {
+                frame.append("greenhand");
+            }
+            text[i] = frame.append('\n').toString().getBytes(StandardCharsets.US_ASCII);
+            random[i] = new byte[text[i].length];
+            rnd.nextBytes(random[i]);
+        }
+
+        for (int round = 0; round < 2; round++) {
+            // 第一轮是预热
+            boolean print = round == 1;
+            run("text  ", text, new CompressionCodec(CompressionCodec.Mode.FRAME, Integer.MAX_VALUE, 1, 0), print);
+            run("text  ", text, new CompressionCodec(CompressionCodec.Mode.FRAME, 256, 1, 0), print);
+            run("text  ", text, new CompressionCodec(CompressionCodec.Mode.BATCH, 256, 1, 64 * 1024), print);
+            run("text  ", text, new CompressionCodec(CompressionCodec.Mode.BATCH, 256, 6, 64 * 1024), print);
+            run("random", random, new CompressionCodec(CompressionCodec.Mode.FRAME, 256, 1, 0), print);
+            run("random", random, new CompressionCodec(CompressionCodec.Mode.BATCH, 256, 1, 64 * 1024), print);
+        }
+    }
+
+    private static void run(String name, byte[][] frames, CompressionCodec codec, boolean print) throws IOException {
+        CompressionCodec.Encoder encoder = codec.newEncoder();
+        CompressionCodec.Decoder decoder = codec.newDecoder();
+        ByteBuffer decoded = ByteBuffer.allocate(64 * 1024);
+        int index = 0;
+        int offset = 0;
+        for (int i = 0; i <= frames.length; i++) {
+            ByteBuffer block = i < frames.length ? encoder.encode(ByteBuffer.wrap(frames[i])) : encoder.flush();
+            if (block == null) {
+                continue;
+            }
+            // 每次最多"收到" 1000 字节
+            while (block.hasRemaining()) {
+                ByteBuffer wire = decoder.wire();
+                ByteBuffer part = block.duplicate();
+                part.limit(part.position() + Math.min(Math.min(1000, wire.remaining()), block.remaining()));
+                wire.put(part);
+                block.position(part.limit());
+                do {
+                    decoder.decode(decoded);
+                    decoded.flip();
+                    // 逐字节和原始数据比较
+                    while (decoded.hasRemaining()) {
+                        Assert.assertEquals(frames[index][offset], decoded.get());
+                        if (++offset == frames[index].length) {
+                            index++;
+                            offset = 0;
+                        }
+                    }
+                    decoded.clear();
+                } while (decoder.hasBufferedInput());
+            }
+        }
+        Assert.assertEquals(frames.length, index);
+        encoder.close();
+        decoder.close();
+        if (print) {
+            System.out.println(name + " " + codec.report());
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package edu.cqupt.nio.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 连接上的流式压缩
+ *
+ * 发送方把字节流切成块（block），每个块的格式为 类型(1字节) + 长度(4字节) + 内容：
+ * RAW 块直接是原始数据；DEFLATE 块是同一个 Deflater 流中以 SYNC_FLUSH 结束的一段，
+ * 接收方用同一个 Inflater 流解压出原始数据。整个连接共用一个压缩流，后面的块可以引用前面出现过的内容，
+ * 重复度高的文本压缩率会比每块单独压缩高很多。接收方解压之后得到的还是原来的字节流，按 \n 拆分消息的逻辑不变。
+ *
+ * 1. FRAME 模式：每次 encode() 立即产生一个块，延迟最低
+ * 2. BATCH 模式：encode() 只是把数据攒起来，攒够 batchBytes 或者调用 flush() 时才压缩成一个块，
+ *    一次 SYNC_FLUSH 的额外开销（至少 5 个字节）和一次压缩调用分摊到多条消息上
+ * 3. 待压缩的数据少于 threshold 时以 RAW 块发送，小消息压缩不划算
+ * 4. Deflater / Inflater 创建时会分配本地内存，这里池化复用，连接关闭时 reset() 后还回池子
+ * 5. 一个块的长度不超过 maxBlockBytes：发送方把更长的数据切成多个块，接收方收到更长（或者为负数）的长度时
+ *    认为数据已经损坏，直接关闭连接，不会按对方声明的长度分配缓冲区
+ *
+ * JDK 8 的 Deflater / Inflater 只接受 byte[]，直接内存中的数据要先复制到每个连接自己的 byte[] 中。
+ *
+ * -Dnio.compress=frame|batch，不设置时不压缩
+ * -Dnio.compress.threshold=小于这个字节数时不压缩，默认 256
+ * -Dnio.compress.level=压缩级别 1 ~ 9，默认 1（速度优先）
+ * -Dnio.compress.batchBytes=BATCH 模式下一个块最多攒的原始字节数，默认 64KB
+ * -Dnio.compress.maxBlockBytes=一个块的最大长度，收发双方需要一致，默认 1MB
+ */
+@Slf4j
+class CompressionCodec {
+    enum Mode {
+        FRAME,
+        BATCH
+    }
+
+    static final byte RAW = 0;
+    static final byte DEFLATE = 1;
+    static final int HEADER = 5;
+    static final int DEFAULT_MAX_BLOCK_BYTES = 1024 * 1024;
+    /**
+     * 解压到直接内存时，一次最多解压这么多字节到堆内存的中转数组
+     */
+    private static final int SCRATCH_BYTES = 8 * 1024;
+
+    private final Mode mode;
+    private final int threshold;
+    private final int level;
+    private final int batchBytes;
+    private final int maxBlockBytes;
+    private final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(256);
+    private final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(256);
+
+    /**
+     * 发送方向：压缩前的字节数、写到网络上的字节数（含块头）、压缩耗费的时间
+     */
+    private final LongAdder rawOut = new LongAdder();
+    private final LongAdder wireOut = new LongAdder();
+    private final LongAdder deflateNanos = new LongAdder();
+    /**
+     * 接收方向
+     */
+    private final LongAdder wireIn = new LongAdder();
+    private final LongAdder rawIn = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    CompressionCodec(Mode mode, int threshold, int level, int batchBytes) {
+        this(mode, threshold, level, batchBytes, DEFAULT_MAX_BLOCK_BYTES);
+    }
+
+    /**
+     * @param maxBlockBytes 一个块（不含块头）的最大长度，至少 1KB
+     */
+    CompressionCodec(Mode mode, int threshold, int level, int batchBytes, int maxBlockBytes) {
+        if (maxBlockBytes < 1024) {
+            throw new IllegalArgumentException("maxBlockBytes must be at least 1024: " + maxBlockBytes);
+        }
+        this.mode = mode;
+        this.threshold = threshold;
+        this.level = level;
+        this.batchBytes = batchBytes;
+        this.maxBlockBytes = maxBlockBytes;
+    }
+
+    /**
+     * @return 没有设置 nio.compress 时返回 null
+     */
+    static CompressionCodec fromSystemProperties() {
+        String mode = System.getProperty("nio.compress");
+        if (mode == null) {
+            return null;
+        }
+        return new CompressionCodec(Mode.valueOf(mode.toUpperCase()),
+                Integer.getInteger("nio.compress.threshold", 256),
+                Integer.getInteger("nio.compress.level", Deflater.BEST_SPEED),
+                Integer.getInteger("nio.compress.batchBytes", 64 * 1024),
+                Integer.getInteger("nio.compress.maxBlockBytes", DEFAULT_MAX_BLOCK_BYTES));
+    }
+
+    Encoder newEncoder() {
+        Deflater deflater = deflaters.poll();
+        return new Encoder(deflater != null ? deflater : new Deflater(level));
+    }
+
+    Decoder newDecoder() {
+        Inflater inflater = inflaters.poll();
+        return new Decoder(inflater != null ? inflater : new Inflater());
+    }
+
+    private void release(Deflater deflater) {
+        deflater.reset();
+        if (!deflaters.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private void release(Inflater inflater) {
+        inflater.reset();
+        if (!inflaters.offer(inflater)) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 发送和接收的字节数、压缩率和每 MB 原始数据消耗的 CPU 时间
+     */
+    String report() {
+        return String.format("%s out: raw %d, wire %d (%.1f%%), %.2f ms/MB; in: wire %d, raw %d, %.2f ms/MB",
+                mode, rawOut.sum(), wireOut.sum(), percent(wireOut.sum(), rawOut.sum()),
+                millisPerMb(deflateNanos.sum(), rawOut.sum()),
+                wireIn.sum(), rawIn.sum(), millisPerMb(inflateNanos.sum(), rawIn.sum()));
+    }
+
+    private static double percent(long part, long total) {
+        return total == 0 ? 0 : part * 100.0 / total;
+    }
+
+    private static double millisPerMb(long nanos, long bytes) {
+        return bytes == 0 ? 0 : nanos / 1e6 / (bytes / 1024.0 / 1024.0);
+    }
+
+    private static void putInt(byte[] bytes, int index, int value) {
+        bytes[index] = (byte) (value >>> 24);
+        bytes[index + 1] = (byte) (value >>> 16);
+        bytes[index + 2] = (byte) (value >>> 8);
+        bytes[index + 3] = (byte) value;
+    }
+
+    /**
+     * 一个连接发送方向的压缩流，只能在一个线程中使用
+     */
+    class Encoder {
+        private final Deflater deflater;
+        /**
+         * 还没有压缩的原始数据
+         */
+        private byte[] pending = new byte[1024];
+        private int pendingLength;
+        private byte[] out = new byte[1024];
+
+        private Encoder(Deflater deflater) {
+            this.deflater = deflater;
+        }
+
+        /**
+         * @return 读模式的块，BATCH 模式下还没有攒够时返回 null
+         */
+        ByteBuffer encode(ByteBuffer data) {
+            int length = data.remaining();
+            if (pendingLength + length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+            }
+            data.duplicate().get(pending, pendingLength, length);
+            pendingLength += length;
+            if (mode == Mode.BATCH && pendingLength < batchBytes) {
+                return null;
+            }
+            return flush();
+        }
+
+        /**
+         * 把攒着的数据压缩成块，超过 maxBlockBytes / 2 的数据切成多个块，
+         * 即使数据无法压缩，一个块压缩之后也不会超过 maxBlockBytes
+         *
+         * @return 没有待压缩的数据时返回 null
+         */
+        ByteBuffer flush() {
+            if (pendingLength == 0) {
+                return null;
+            }
+            int length = 0;
+            for (int offset = 0; offset < pendingLength; ) {
+                int chunk = Math.min(pendingLength - offset, maxBlockBytes / 2);
+                length = appendBlock(offset, chunk, length);
+                offset += chunk;
+            }
+            rawOut.add(pendingLength);
+            wireOut.add(length);
+            pendingLength = 0;
+            ByteBuffer blocks = ByteBuffer.allocate(length);
+            blocks.put(out, 0, length).flip();
+            return blocks;
+        }
+
+        /**
+         * 把 pending 中 [offset, offset + chunk) 编码成一个块，写到 out 的 start 处
+         *
+         * @return 块在 out 中的结束位置
+         */
+        private int appendBlock(int offset, int chunk, int start) {
+            if (out.length < start + HEADER + chunk + 64) {
+                out = Arrays.copyOf(out, Math.max(out.length * 2, start + HEADER + chunk + 64));
+            }
+            if (chunk < threshold) {
+                out[start] = RAW;
+                putInt(out, start + 1, chunk);
+                System.arraycopy(pending, offset, out, start + HEADER, chunk);
+                return start + HEADER + chunk;
+            }
+            long begin = System.nanoTime();
+            deflater.setInput(pending, offset, chunk);
+            int length = start + HEADER;
+            while (true) {
+                if (out.length - length < 64) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                int n = deflater.deflate(out, length, out.length - length, Deflater.SYNC_FLUSH);
+                length += n;
+                // 输出缓冲区没有被填满，说明这次 SYNC_FLUSH 的输出已经全部取出
+                if (length < out.length) {
+                    break;
+                }
+            }
+            deflateNanos.add(System.nanoTime() - begin);
+            out[start] = DEFLATE;
+            putInt(out, start + 1, length - start - HEADER);
+            return length;
+        }
+
+        void close() {
+            release(deflater);
+        }
+    }
+
+    /**
+     * 一个连接接收方向的解压流，只能在一个线程中使用
+     */
+    class Decoder {
+        private final Inflater inflater;
+        /**
+         * 从网络上读到的数据（写模式），至少能放下一个完整的块
+         */
+        private ByteBuffer wire = ByteBuffer.allocate(4096);
+        /**
+         * 正在解压的 DEFLATE 块的内容
+         */
+        private byte[] block = new byte[1024];
+        /**
+         * dst 是直接内存时先解压到这里再复制过去，用到时才分配
+         */
+        private byte[] scratch;
+        private boolean inflating;
+        /**
+         * 当前 RAW 块还没有取走的字节数
+         */
+        private int rawRemaining;
+
+        private Decoder(Inflater inflater) {
+            this.inflater = inflater;
+        }
+
+        /**
+         * 读网络数据的缓冲区（写模式）
+         */
+        ByteBuffer wire() {
+            return wire;
+        }
+
+        /**
+         * 尽可能多地把 wire 中的块还原成原始数据写入 dst。dst 可以是直接内存（例如 InboundRing 的空闲空间），
+         * Inflater 只能写入 byte[]，这时多一次复制
+         *
+         * @return 写入 dst 的字节数
+         */
+        int decode(ByteBuffer dst) throws IOException {
+            int produced = 0;
+            wire.flip();
+            try {
+                while (dst.hasRemaining()) {
+                    if (inflating) {
+                        int n = inflate(dst);
+                        produced += n;
+                        if (n == 0) {
+                            if (inflater.finished() || inflater.needsDictionary()) {
+                                throw new IOException("bad compressed block");
+                            }
+                            if (!inflater.needsInput()) {
+                                // dst 满了
+                                break;
+                            }
+                            inflating = false;
+                        }
+                    } else if (rawRemaining > 0) {
+                        int n = Math.min(rawRemaining, Math.min(dst.remaining(), wire.remaining()));
+                        if (n == 0) {
+                            break;
+                        }
+                        ByteBuffer slice = wire.duplicate();
+                        slice.limit(slice.position() + n);
+                        dst.put(slice);
+                        wire.position(wire.position() + n);
+                        rawRemaining -= n;
+                        rawIn.add(n);
+                        produced += n;
+                    } else if (!nextBlock()) {
+                        break;
+                    }
+                }
+            } finally {
+                wire.compact();
+            }
+            return produced;
+        }
+
+        /**
+         * 开始下一个块，RAW 块可以边收边取，DEFLATE 块要等整个块都到了才开始解压
+         *
+         * @return 数据不够一个块时返回 false
+         * @throws IOException 类型未知，或者长度为负数、超过 maxBlockBytes
+         */
+        private boolean nextBlock() throws IOException {
+            if (wire.remaining() < HEADER) {
+                return false;
+            }
+            int start = wire.position();
+            byte type = wire.get(start);
+            int length = wire.getInt(start + 1);
+            if ((type != RAW && type != DEFLATE) || length < 0 || length > maxBlockBytes) {
+                throw new IOException("bad compressed block: type " + type + ", length " + length);
+            }
+            if (type == RAW) {
+                wire.position(start + HEADER);
+                wireIn.add(HEADER + length);
+                rawRemaining = length;
+                return true;
+            }
+            if (wire.remaining() < HEADER + length) {
+                if (wire.capacity() < HEADER + length) {
+                    // 扩容，保证下一次能读到整个块
+                    ByteBuffer newBuffer = ByteBuffer.allocate(HEADER + length);
+                    newBuffer.put(wire);
+                    newBuffer.flip();
+                    wire = newBuffer;
+                }
+                return false;
+            }
+            if (block.length < length) {
+                block = new byte[Math.max(block.length * 2, length)];
+            }
+            wire.position(start + HEADER);
+            wire.get(block, 0, length);
+            inflater.setInput(block, 0, length);
+            wireIn.add(HEADER + length);
+            inflating = true;
+            return true;
+        }
+
+        private int inflate(ByteBuffer dst) throws IOException {
+            long start = System.nanoTime();
+            try {
+                int n;
+                if (dst.hasArray()) {
+                    n = inflater.inflate(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+                    dst.position(dst.position() + n);
+                } else {
+                    if (scratch == null) {
+                        scratch = new byte[SCRATCH_BYTES];
+                    }
+                    n = inflater.inflate(scratch, 0, Math.min(scratch.length, dst.remaining()));
+                    dst.put(scratch, 0, n);
+                }
+                rawIn.add(n);
+                return n;
+            } catch (DataFormatException e) {
+                throw new IOException("bad compressed block", e);
+            } finally {
+                inflateNanos.add(System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * 不需要再从网络读数据就能继续解压出数据
+         */
+        boolean hasBufferedInput() {
+            if (inflating || (rawRemaining > 0 && wire.position() > 0)) {
+                return true;
+            }
+            if (rawRemaining > 0 || wire.position() < HEADER) {
+                return false;
+            }
+            return wire.get(0) == RAW || wire.position() >= HEADER + wire.getInt(1);
+        }
+
+        void close() {
+            release(inflater);
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package edu.cqupt.nio.network;
+
+import edu.cqupt.nio.byteBuffer.utils.RefCountedBuffer;
+import edu.cqupt.nio.fileChannel.LogCursor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.function.Predicate;
+
+/**
+ * 一个客户端连接的状态，以附件的形式注册在 SelectionKey 上
+ *
+ * inbound：接收数据的缓冲区（写模式），从 ReceiveBufferAllocator 借来，大小按这个连接最近读到的字节数调整；
+ *          放不下一条完整消息时换成更大的，拆完消息后没有半包时还回去（此时为 null），空闲的连接不占用接收缓冲区
+ * outbound：等待发送的数据，一次写不完时关注可写事件，剩下的等 OP_WRITE 再写（参考 WriteServer），
+ *           多个待发送的ByteBuffer通过一次 write(ByteBuffer[]) 合并写出；
+ *           广播消息是共享内容的只读视图，写完之后释放对共享内容的引用
+ * ring：设置了 -Dnio.ring.bytes 时代替 inbound，从worker的 RingSlab 中借出的环形缓冲区（见 InboundRing），
+ *       拆分消息时只推进读指针，不再 compact()；同样在没有半包时还回去
+ * subscription：订阅了 MessageLog 的连接不再发送 outbound，而是通过 transferTo 把日志直接发送到 socket。
+ *               收到 SUB 时 outbound 中可能还有没写完的消息、还有没发出的持久化确认（pendingAcks），
+ *               这时先记在 pendingSubscription 中，等它们都写完再切换，不会丢掉确认，也不会把日志插进半条消息中间
+ * tls：启用了 TLS 时所有读写都经过它加解密，握手完成之前 outbound 中的数据先留在队列中
+ * encoder / decoder：启用了压缩时（见 CompressionCodec），发送的数据先压缩成块再放入 outbound，
+ *                    收到的块解压之后再放入 inbound；BATCH 模式下同一轮事件循环中发送的数据合并成一个块
+ * id / table：连接的全局id和所在worker的连接表，关闭时从表中删除
+ * flushDeferral：worker执行邮箱任务期间，发送的数据先留在 outbound 中，任务执行完之后由worker统一 flush
+ * shaper / bucket：启用了限速时（见 BandwidthShaper），每次最多写出令牌允许的字节数，令牌用完后暂停关注可写事件，
+ *                  由worker的事件循环在攒够令牌后调用 resumeWrite()
+ *
+ * 只能在注册它的 selector 所在的线程中使用
+ */
+@Slf4j
+class Connection {
+    final SocketChannel channel;
+    final SelectionKey key;
+    /**
+     * 没有半包时为 null，下一次 read() 时再借
+     */
+    ByteBuffer inbound;
+    private final ReceiveBufferAllocator receiveBuffers;
+    private final ReceiveBufferAllocator.Handle receiveSize;
+    /**
+     * 使用环形缓冲区时不为 null，这时不使用 inbound
+     */
+    private RingSlab ringSlab;
+    InboundRing ring;
+    /**
+     * outbound 中不是共享内容的元素在 owners 中对应的占位
+     */
+    private static final RefCountedBuffer UNSHARED = new RefCountedBuffer(ByteBuffer.allocate(0), null);
+    private static final int MAX_GATHER = 16;
+
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    /**
+     * 和 outbound 一一对应，记录每个待发送数据所属的共享内容
+     */
+    private final ArrayDeque<RefCountedBuffer> owners = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    /**
+     * outbound 中还没有写出去的字节数
+     */
+    private long pendingBytes;
+    LogCursor subscription;
+    private LogCursor pendingSubscription;
+    /**
+     * 已经交给 MessageLog、还没有发出确认的消息数，由worker维护
+     */
+    int pendingAcks;
+    private BandwidthShaper shaper;
+    private TokenBucket bucket;
+    /**
+     * 正在等待令牌，这期间不写数据
+     */
+    private boolean throttled;
+    TlsChannel tls;
+    long id;
+    ConnectionTable table;
+    CompressionCodec.Encoder encoder;
+    CompressionCodec.Decoder decoder;
+    private Executor eventLoop;
+    private boolean batchScheduled;
+    /**
+     * 返回 true 表示由调用者稍后 flush，为 null 时总是立即 flush
+     */
+    private Predicate<Connection> flushDeferral;
+
+    Connection(SocketChannel channel, SelectionKey key, ReceiveBufferAllocator receiveBuffers) {
+        this.channel = channel;
+        this.key = key;
+        this.receiveBuffers = receiveBuffers;
+        this.receiveSize = receiveBuffers.newHandle();
+    }
+
+    /**
+     * 读取数据到 inbound，inbound 为 null 时先按记录的大小借一个
+     *
+     * @return 读到的字节数，-1 表示对方已经正常断开
+     */
+    int read() throws IOException {
+        if (ringSlab != null) {
+            return readRing();
+        }
+        if (inbound == null) {
+            inbound = receiveSize.allocate();
+        }
+        int n = readInto(inbound);
+        if (n > 0) {
+            receiveSize.record(n);
+        }
+        return n;
+    }
+
+    /**
+     * 读取数据到 ring，没有 TLS 和压缩时直接从 socket 分散读入
+     */
+    private int readRing() throws IOException {
+        if (ring == null) {
+            ring = ringSlab.allocate();
+        }
+        if (tls == null && decoder == null) {
+            return ring.readFrom(channel);
+        }
+        int n = readInto(ring.writableRegion());
+        if (n > 0) {
+            ring.written(n);
+        }
+        return n;
+    }
+
+    private int readInto(ByteBuffer dst) throws IOException {
+        if (decoder == null) {
+            return readWire(dst);
+        }
+        int read = decoder.hasBufferedInput() ? 0 : readWire(decoder.wire());
+        int n = decoder.decode(dst);
+        return n == 0 && read < 0 ? -1 : n;
+    }
+
+    private int readWire(ByteBuffer dst) throws IOException {
+        return tls != null ? tls.read(dst) : channel.read(dst);
+    }
+
+    /**
+     * TLS 已经解密、或者已经收到还没有解压的数据不会再触发可读事件，需要继续 read()
+     */
+    boolean hasBufferedInput() {
+        return (tls != null && tls.hasBufferedInput()) || (decoder != null && decoder.hasBufferedInput());
+    }
+
+    /**
+     * 启用压缩
+     *
+     * @param eventLoop BATCH 模式下在这一轮事件循环结束之后压缩攒着的数据
+     */
+    void compress(CompressionCodec codec, Executor eventLoop) {
+        this.encoder = codec.newEncoder();
+        this.decoder = codec.newDecoder();
+        this.eventLoop = eventLoop;
+    }
+
+    private GatheringByteChannel output() {
+        return tls != null ? tls : channel;
+    }
+
+    /**
+     * 使用 RingSlab 中的环形缓冲区接收数据
+     */
+    void useRing(RingSlab ringSlab) {
+        this.ringSlab = ringSlab;
+    }
+
+    /**
+     * 已经收到还没有拆分出去的字节数
+     */
+    int bufferedBytes() {
+        if (ring != null) {
+            return ring.readable();
+        }
+        return inbound == null ? 0 : inbound.position();
+    }
+
+    /**
+     * 在拆分完消息（compact 之后）调用，如果 position == limit，说明 ByteBuffer 放不下一条消息，换成大一档的。
+     * 环形缓冲区的大小是固定的，满了说明消息太长
+     */
+    void ensureCapacity() throws IOException {
+        if (ring != null) {
+            if (ring.isFull()) {
+                throw new IOException("frame longer than " + ring.capacity() + " bytes");
+            }
+            return;
+        }
+        if (inbound.position() == inbound.limit()) {
+            inbound = receiveBuffers.grow(inbound);
+        }
+    }
+
+    /**
+     * 这一轮读完之后调用，inbound / ring 中没有半包或者连接已经关闭时把它还回去。
+     * close() 可能在拆分消息的过程中被调用，所以 close() 本身不归还
+     */
+    void releaseIdleBuffer() {
+        if (ring != null && (ring.isEmpty() || !key.isValid())) {
+            ringSlab.release(ring);
+            ring = null;
+        }
+        if (inbound != null && (inbound.position() == 0 || !key.isValid())) {
+            receiveBuffers.release(inbound);
+            inbound = null;
+        }
+    }
+
+    /**
+     * 发送数据，写不完的部分留在队列中等待可写事件
+     */
+    void send(ByteBuffer data) {
+        if (encoder != null) {
+            encode(data);
+            return;
+        }
+        enqueue(data, UNSHARED);
+    }
+
+    /**
+     * 发送共享内容。调用者需要已经为这个连接 retain() 过一次，写完或者连接关闭时会 release()
+     */
+    void sendShared(RefCountedBuffer shared) {
+        if (encoder != null) {
+            // 每个连接的压缩流不同，压缩时已经复制了内容，可以马上释放
+            encode(shared.view());
+            shared.release();
+            return;
+        }
+        enqueue(shared.view(), shared);
+    }
+
+    private void encode(ByteBuffer data) {
+        if (!key.isValid() || subscription != null) {
+            return;
+        }
+        ByteBuffer block = encoder.encode(data);
+        if (block != null) {
+            enqueue(block, UNSHARED);
+        } else if (!batchScheduled) {
+            batchScheduled = true;
+            eventLoop.execute(this::flushBatch);
+        }
+    }
+
+    private void flushBatch() {
+        batchScheduled = false;
+        if (!key.isValid()) {
+            return;
+        }
+        ByteBuffer block = encoder.flush();
+        if (block != null) {
+            enqueue(block, UNSHARED);
+        }
+    }
+
+    private void enqueue(ByteBuffer data, RefCountedBuffer owner) {
+        if (!key.isValid() || subscription != null) {
+            if (owner != UNSHARED) {
+                owner.release();
+            }
+            return;
+        }
+        outbound.add(data);
+        owners.add(owner);
+        pendingBytes += data.remaining();
+        if (outbound.size() == 1 && (flushDeferral == null || !flushDeferral.test(this))) {
+            flush();
+        }
+    }
+
+    /**
+     * 队列从空变为非空时先询问 deferral，它返回 true 时不马上 flush，由它稍后调用 flush()，
+     * 这样同一批中发给这个连接的多条消息可以通过一次 write 写出
+     */
+    void deferFlushes(Predicate<Connection> deferral) {
+        this.flushDeferral = deferral;
+    }
+
+    /**
+     * 从 cursor 开始接收日志，之前的回复都发出之后才真正切换
+     */
+    void subscribe(LogCursor cursor) {
+        pendingSubscription = cursor;
+        flush();
+    }
+
+    /**
+     * 已经订阅或者正在等待切换为订阅者，这之后收到的消息都忽略
+     */
+    boolean subscribing() {
+        return subscription != null || pendingSubscription != null;
+    }
+
+    /**
+     * 启用限速
+     */
+    void shape(BandwidthShaper shaper) {
+        this.shaper = shaper;
+        this.bucket = shaper.newConnectionBucket(System.nanoTime());
+    }
+
+    /**
+     * 令牌攒够了，继续发送
+     */
+    void resumeWrite() {
+        throttled = false;
+        if (key.isValid()) {
+            flush();
+        }
+    }
+
+    /**
+     * @return 这次最多能写的字节数，为 0 时已经登记了等待令牌
+     */
+    private long allowance() {
+        if (shaper == null) {
+            return Long.MAX_VALUE;
+        }
+        long now = System.nanoTime();
+        long allowance = shaper.allowance(bucket, now);
+        if (allowance <= 0) {
+            throttled = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            shaper.throttle(this::resumeWrite, bucket, now);
+            return 0;
+        }
+        return allowance;
+    }
+
+    private void consumed(long bytes) {
+        if (shaper != null) {
+            shaper.consume(bucket, bytes);
+        }
+    }
+
+    long pendingBytes() {
+        return pendingBytes;
+    }
+
+    /**
+     * 尽可能多地写出队列中的数据，全部写完后取消关注可写事件
+     */
+    void flush() {
+        if (throttled) {
+            return;
+        }
+        try {
+            if (tls != null && !tls.handshake()) {
+                // 握手还没有完成，握手自己会关注需要的事件
+                return;
+            }
+            while (!outbound.isEmpty()) {
+                long allowance = allowance();
+                if (allowance == 0) {
+                    return;
+                }
+                int n = 0;
+                long requested = 0;
+                ByteBuffer capped = null;
+                int cappedLimit = 0;
+                for (ByteBuffer buffer : outbound) {
+                    gather[n++] = buffer;
+                    requested += buffer.remaining();
+                    if (requested >= allowance) {
+                        // 最后一个 buffer 只写令牌允许的部分，写完之后恢复 limit
+                        capped = buffer;
+                        cappedLimit = buffer.limit();
+                        buffer.limit(buffer.limit() - (int) (requested - allowance));
+                        requested = allowance;
+                        break;
+                    }
+                    if (n == MAX_GATHER) {
+                        break;
+                    }
+                }
+                long written;
+                try {
+                    written = output().write(gather, 0, n);
+                } finally {
+                    if (capped != null) {
+                        capped.limit(cappedLimit);
+                    }
+                }
+                pendingBytes -= written;
+                consumed(written);
+                boolean full = written < requested;
+                Arrays.fill(gather, 0, n, null);
+                while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                    outbound.poll();
+                    RefCountedBuffer owner = owners.poll();
+                    if (owner != UNSHARED) {
+                        owner.release();
+                    }
+                }
+                if (full) {
+                    // socket 的发送缓冲区满了，等待可写事件
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            if (pendingSubscription != null && pendingAcks == 0) {
+                // 之前的回复都写完了，之后只发送日志
+                subscription = pendingSubscription;
+                pendingSubscription = null;
+            }
+            if (subscription != null) {
+                transferLog();
+                return;
+            }
+            if (tls != null && !tls.flushOutbound()) {
+                // 明文都加密了，但是加密后的数据还没有全部写进 socket
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            log.debug("write failed...{}", e.toString());
+            close();
+        }
+    }
+
+    /**
+     * 把日志中已经持久化的数据发送给订阅者，socket 写不进去时关注可写事件，追上日志后等待下一次组提交的通知。
+     * 启用了 TLS 时数据要先加密，transferTo 会退化为经过用户态缓冲区的复制
+     */
+    private void transferLog() throws IOException {
+        while (!subscription.caughtUp()) {
+            long allowance = allowance();
+            if (allowance == 0) {
+                return;
+            }
+            long transferred = subscription.transferTo(output(), allowance);
+            consumed(transferred);
+            if (transferred == 0) {
+                break;
+            }
+        }
+        if (subscription.caughtUp() && (tls == null || tls.flushOutbound())) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } else {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    void close() {
+        if (table != null) {
+            table.remove(id);
+        }
+        key.cancel();
+        outbound.clear();
+        pendingBytes = 0;
+        RefCountedBuffer owner;
+        while ((owner = owners.poll()) != null) {
+            if (owner != UNSHARED) {
+                owner.release();
+            }
+        }
+        if (tls != null) {
+            tls.close();
+        }
+        if (encoder != null) {
+            encoder.close();
+            decoder.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.debug("close failed...", e);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package edu.cqupt.nio.network;
+
+/**
+ * 连接 id 到 Connection 的哈希表，每个worker一个，只在worker线程中访问
+ *
+ * 1. 开放寻址 + 线性探测，键直接存在 long[] 中，不需要把 long 装箱成 Long，也没有 HashMap 的 Entry 对象
+ * 2. 删除时把后面同一探测链上的元素往前挪（backward shift），不留墓碑，删除多了也不会让查找变慢
+ * 3. 容量是 2 的幂，元素超过容量的一半时扩容
+ *
+ * 连接 id 的高 16 位是所属worker的下标，低 48 位是这个worker内部的序号（从 1 开始，所以 id 不会是 0，
+ * 0 用来表示空槽位）。任何线程拿到 id 都能直接算出连接在哪个worker上，把消息交给那个worker的事件循环，
+ * 不需要一个全局的 ConcurrentHashMap。
+ */
+class ConnectionTable {
+    private static final long EMPTY = 0;
+    private static final int WORKER_SHIFT = 48;
+    private static final long SEQUENCE_MASK = (1L << WORKER_SHIFT) - 1;
+
+    private long[] keys;
+    private Connection[] values;
+    private int mask;
+    private int size;
+
+    ConnectionTable(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 8) - 1) << 1;
+        keys = new long[capacity];
+        values = new Connection[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * @param worker   worker的下标，0 ~ 65535
+     * @param sequence worker内部的序号，从 1 开始
+     */
+    static long id(int worker, long sequence) {
+        if (worker < 0 || worker > 0xFFFF || sequence <= 0 || sequence > SEQUENCE_MASK) {
+            throw new IllegalArgumentException("worker " + worker + ", sequence " + sequence);
+        }
+        return ((long) worker << WORKER_SHIFT) | sequence;
+    }
+
+    /**
+     * id 所属的worker的下标
+     */
+    static int workerOf(long id) {
+        return (int) (id >>> WORKER_SHIFT);
+    }
+
+    /**
+     * id 中的序号是连续分配的，乘以一个奇数常量打散高低位之后再取低位作为槽位
+     */
+    int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    Connection get(long key) {
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            if (keys[i] == EMPTY) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return 之前的值
+     */
+    Connection put(long key, Connection value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("id must not be 0");
+        }
+        int i = slot(key);
+        for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                Connection old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > (mask + 1) >> 1) {
+            resize();
+        }
+        return null;
+    }
+
+    /**
+     * @return 被删除的值
+     */
+    Connection remove(long key) {
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY) {
+                return null;
+            }
+            i = (i + 1) & mask;
+        }
+        Connection old = values[i];
+        // 后面同一条探测链上的元素如果可以放在空出来的位置，就挪过来
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+            // home 不在 (i, j] 这个区间（环形）中，说明它探测时经过了 i，挪到 i 之后依然能被找到
+            boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!between) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        values[i] = null;
+        size--;
+        return old;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        Connection[] oldValues = values;
+        keys = new long[oldKeys.length << 1];
+        values = new Connection[oldKeys.length << 1];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int j = slot(oldKeys[i]);
+                while (keys[j] != EMPTY) {
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+}
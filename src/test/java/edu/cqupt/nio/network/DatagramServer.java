@@ -0,0 +1,279 @@
+package edu.cqupt.nio.network;
+
+import edu.cqupt.nio.byteBuffer.utils.ByteBufferPool;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static edu.cqupt.nio.byteBuffer.utils.ByteBufferUtil.debugRead;
+
+/**
+ * 基于 DatagramChannel（UDP）的多线程 Selector 服务器，服务器把收到的每个数据报原样回复给发送方
+ *
+ * 结构和 MultiThreadSelectorServer 的 worker 一样：每个worker一个线程、一个selector，
+ * 不同的是 UDP 没有连接，也就没有 accept，每个worker直接拥有一个 DatagramChannel。
+ * 没有直接复用那里的 Worker：它的事件循环处理的是 Connection（accept、按连接读写和拆包、邮箱中任务的 flush 合并、限速），
+ * 这里只有一个 channel，只需要 select / receive / send，共用一个循环反而要在每一步区分两种 channel。
+ *
+ * 1. 支持 SO_REUSEPORT 时，每个worker各自绑定一个 DatagramChannel 到同一个端口，由内核把数据报分散到各个 channel；
+ *    不支持时只有一个worker
+ * 2. 一次可读事件中循环 receive()，最多连续接收 MAX_BATCH 个数据报，减少 select() 的次数
+ * 3. 数据报接收到池化的直接内存缓冲区中，回复直接复用同一个缓冲区，发送完之后归还
+ * 4. 回复先攒起来，处理完一批之后再统一发送；发送缓冲区满了就关注可写事件，积压太多时丢弃（UDP 本身允许丢包）
+ *
+ * 每个worker统计收到、回复和丢弃的数据报数，定期以及进程退出时打印
+ *
+ * -Dnio.udp.bufferSize=单个数据报缓冲区的大小，超过的部分会被截断，默认 2048
+ * -Dnio.udp.reportSeconds=打印统计的间隔，默认 10，0 表示只在退出时打印
+ */
+@Slf4j
+public class DatagramServer {
+    public static void main(String[] args) throws IOException {
+        DatagramWorker[] workers = start(8080, Runtime.getRuntime().availableProcessors(),
+                Integer.getInteger("nio.udp.bufferSize", 2048));
+        long reportSeconds = Long.getLong("nio.udp.reportSeconds", 10);
+        if (reportSeconds > 0) {
+            ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "udp-report");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reporter.scheduleAtFixedRate(() -> log.info(report(workers)), reportSeconds, reportSeconds, TimeUnit.SECONDS);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> log.info(report(workers)), "udp-report-shutdown"));
+    }
+
+    /**
+     * 绑定端口并启动worker。第一个 channel 开启 SO_REUSEPORT 失败时只启动一个worker；
+     * 之后的 channel 开启或者绑定失败时关闭它，只使用已经绑定成功的worker
+     *
+     * @param port 为 0 时由系统分配，之后的worker绑定到同一个端口
+     */
+    static DatagramWorker[] start(int port, int count, int bufferSize) throws IOException {
+        List<DatagramWorker> workers = new ArrayList<>();
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = count > 1 && ReusePort.enable(first);
+        first.bind(new InetSocketAddress(port));
+        InetSocketAddress address = (InetSocketAddress) first.getLocalAddress();
+        workers.add(new DatagramWorker("udp-worker-0", first, bufferSize));
+        if (count > 1 && !reusePort) {
+            log.debug("SO_REUSEPORT is not supported, only one udp worker");
+        }
+        for (int i = 1; reusePort && i < count; i++) {
+            DatagramChannel channel = DatagramChannel.open();
+            try {
+                if (!ReusePort.enable(channel)) {
+                    throw new IOException("SO_REUSEPORT could not be enabled");
+                }
+                channel.bind(address);
+            } catch (IOException e) {
+                channel.close();
+                log.warn("udp worker {} not started, running with {} workers...{}", i, workers.size(), e.toString());
+                break;
+            }
+            workers.add(new DatagramWorker("udp-worker-" + i, channel, bufferSize));
+        }
+        for (DatagramWorker worker : workers) {
+            worker.start();
+        }
+        return workers.toArray(new DatagramWorker[0]);
+    }
+
+    /**
+     * 所有worker的统计，received 后面的括号中是每个worker收到的数量，可以看出内核分散得是否均匀
+     */
+    static String report(DatagramWorker[] workers) {
+        long received = 0;
+        long sent = 0;
+        long dropped = 0;
+        StringBuilder perWorker = new StringBuilder();
+        for (DatagramWorker worker : workers) {
+            received += worker.received();
+            sent += worker.sent();
+            dropped += worker.dropped();
+            perWorker.append(perWorker.length() == 0 ? "" : ", ").append(worker.received());
+        }
+        return "udp received " + received + " (" + perWorker + "), sent " + sent + ", dropped " + dropped;
+    }
+
+    /**
+     * 负责一个 DatagramChannel 的读写
+     */
+    static class DatagramWorker implements Runnable {
+        private static final int MAX_BATCH = 64;
+        /**
+         * 待发送的回复超过这个数量时直接丢弃
+         */
+        private static final int MAX_PENDING = 1024;
+
+        private final String name;
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final SelectionKey key;
+        private final ByteBufferPool bufferPool;
+        private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+        private final SocketAddress[] senders = new SocketAddress[MAX_BATCH];
+        private final ArrayDeque<ByteBuffer> replies = new ArrayDeque<>();
+        private final ArrayDeque<SocketAddress> targets = new ArrayDeque<>();
+        private final LongAdder received = new LongAdder();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private volatile boolean running = true;
+
+        DatagramWorker(String name, DatagramChannel channel, int bufferSize) throws IOException {
+            this.name = name;
+            this.channel = channel;
+            this.selector = Selector.open();
+            this.bufferPool = new ByteBufferPool(bufferSize, true, MAX_BATCH + MAX_PENDING);
+            channel.configureBlocking(false);
+            this.key = channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        void start() {
+            new Thread(this, name).start();
+        }
+
+        /**
+         * 停止事件循环并关闭 channel
+         */
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+
+        SocketAddress localAddress() throws IOException {
+            return channel.getLocalAddress();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey selectedKey = iterator.next();
+                        iterator.remove();
+                        if (selectedKey.isReadable()) {
+                            receive();
+                        }
+                        if (selectedKey.isValid() && selectedKey.isWritable()) {
+                            flushReplies();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                selector.close();
+                channel.close();
+            } catch (IOException e) {
+                log.debug("close failed...", e);
+            }
+        }
+
+        /**
+         * 连续接收一批数据报，处理完后统一发送回复
+         */
+        private void receive() throws IOException {
+            int n = 0;
+            IOException failure = null;
+            ByteBuffer buffer = null;
+            try {
+                while (n < MAX_BATCH) {
+                    buffer = bufferPool.acquire();
+                    SocketAddress sender = channel.receive(buffer);
+                    if (sender == null) {
+                        // 没有更多的数据报了
+                        break;
+                    }
+                    buffer.flip();
+                    batch[n] = buffer;
+                    senders[n] = sender;
+                    n++;
+                    buffer = null;
+                }
+            } catch (IOException e) {
+                // 接收失败时，这一批中已经收到的数据报照常处理，处理完再抛出
+                failure = e;
+            }
+            if (buffer != null) {
+                bufferPool.release(buffer);
+            }
+            received.add(n);
+            for (int i = 0; i < n; i++) {
+                handle(batch[i], senders[i]);
+                batch[i] = null;
+                senders[i] = null;
+            }
+            try {
+                flushReplies();
+            } catch (IOException e) {
+                if (failure == null) {
+                    throw e;
+                }
+                failure.addSuppressed(e);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private void handle(ByteBuffer datagram, SocketAddress sender) {
+            if (log.isDebugEnabled()) {
+                log.debug("receive...{}", sender);
+                debugRead(datagram);
+            }
+            if (replies.size() >= MAX_PENDING) {
+                dropped.increment();
+                bufferPool.release(datagram);
+                return;
+            }
+            replies.add(datagram);
+            targets.add(sender);
+        }
+
+        private void flushReplies() throws IOException {
+            while (!replies.isEmpty()) {
+                ByteBuffer reply = replies.peek();
+                if (channel.send(reply, targets.peek()) == 0 && reply.hasRemaining()) {
+                    // 发送缓冲区满了
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                replies.poll();
+                targets.poll();
+                bufferPool.release(reply);
+                sent.increment();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        long received() {
+            return received.sum();
+        }
+
+        long sent() {
+            return sent.sum();
+        }
+
+        long dropped() {
+            return dropped.sum();
+        }
+    }
+}
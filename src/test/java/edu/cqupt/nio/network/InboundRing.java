@@ -0,0 +1,157 @@
+package edu.cqupt.nio.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ScatteringByteChannel;
+
+/**
+ * 一个连接的接收环形缓冲区，内存是 RingSlab 中的一段直接内存，容量是 2 的幂
+ *
+ * 1. readIndex / writeIndex 是一直增长的 long，用 index & mask 得到在缓冲区中的位置，
+ *    读走数据只需要推进 readIndex，不需要像 compact() 那样把半包复制回缓冲区开头
+ * 2. 空闲的空间在环尾绕回开头时分成两段，通过一次 read(ByteBuffer[]) 分散读入
+ * 3. scanIndex 记录已经找过 \n 的位置，半包等下一次读到数据时从上次停下的地方继续找
+ * 4. 没有跨过环尾的消息直接返回缓冲区的视图，跨过环尾的消息复制到一个复用的堆缓冲区中
+ *
+ * nextFrame() 返回的消息只在下一次读取之前有效。只能在连接所在的线程中使用
+ */
+class InboundRing {
+    private final ByteBuffer memory;
+    private final int capacity;
+    private final int mask;
+    /**
+     * RingSlab 中的下标，-1 表示 slab 用完之后单独分配的
+     */
+    final int chunk;
+    /**
+     * 分散读取用的两个视图，重复使用
+     */
+    private final ByteBuffer[] regions = new ByteBuffer[2];
+    private long readIndex;
+    private long writeIndex;
+    private long scanIndex;
+    /**
+     * 跨过环尾的消息复制到这里
+     */
+    private ByteBuffer wrapped;
+
+    InboundRing(ByteBuffer memory, int chunk) {
+        if (Integer.bitCount(memory.capacity()) != 1) {
+            throw new IllegalArgumentException("capacity must be a power of two: " + memory.capacity());
+        }
+        this.memory = memory;
+        this.capacity = memory.capacity();
+        this.mask = capacity - 1;
+        this.chunk = chunk;
+        this.regions[0] = memory.duplicate();
+        this.regions[1] = memory.duplicate();
+    }
+
+    /**
+     * 从 channel 读取数据，填满所有空闲的空间（最多两段）
+     *
+     * @return 读到的字节数，-1 表示对方已经正常断开
+     */
+    int readFrom(ScatteringByteChannel channel) throws IOException {
+        int free = capacity - readable();
+        if (free == 0) {
+            return 0;
+        }
+        int w = (int) writeIndex & mask;
+        int first = Math.min(free, capacity - w);
+        region(regions[0], w, first);
+        long n;
+        if (first < free) {
+            region(regions[1], 0, free - first);
+            n = channel.read(regions, 0, 2);
+        } else {
+            n = channel.read(regions[0]);
+        }
+        if (n > 0) {
+            writeIndex += n;
+        }
+        return (int) n;
+    }
+
+    /**
+     * 写指针之后连续的空闲空间，写入之后调用 written()。用于 TLS 解密、解压这种只能写入一个 ByteBuffer 的场景
+     */
+    ByteBuffer writableRegion() {
+        int w = (int) writeIndex & mask;
+        return region(regions[0], w, Math.min(capacity - readable(), capacity - w));
+    }
+
+    void written(int n) {
+        writeIndex += n;
+    }
+
+    /**
+     * 下一条以 \n 结尾的完整消息（不包括 \n）
+     *
+     * @return 没有完整的消息时返回 null
+     */
+    ByteBuffer nextFrame() {
+        for (; scanIndex < writeIndex; scanIndex++) {
+            if (memory.get((int) scanIndex & mask) == '\n') {
+                ByteBuffer frame = frame(readIndex, (int) (scanIndex - readIndex));
+                readIndex = ++scanIndex;
+                return frame;
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer frame(long from, int length) {
+        int start = (int) from & mask;
+        if (start + length <= capacity) {
+            return region(memory.duplicate(), start, length);
+        }
+        if (wrapped == null) {
+            wrapped = ByteBuffer.allocate(capacity);
+        }
+        int first = capacity - start;
+        wrapped.clear();
+        wrapped.put(region(regions[0], start, first));
+        wrapped.put(region(regions[1], 0, length - first));
+        wrapped.flip();
+        return wrapped;
+    }
+
+    private ByteBuffer region(ByteBuffer view, int position, int length) {
+        view.limit(capacity);
+        view.position(position);
+        view.limit(position + length);
+        return view;
+    }
+
+    /**
+     * 还没有被 nextFrame() 读走的字节数
+     */
+    int readable() {
+        return (int) (writeIndex - readIndex);
+    }
+
+    boolean isEmpty() {
+        return readIndex == writeIndex;
+    }
+
+    /**
+     * 缓冲区满了还没有找到 \n，说明一条消息比整个缓冲区还大
+     */
+    boolean isFull() {
+        return readable() == capacity;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * 从 slab 中重新借出时清空
+     */
+    void reset() {
+        readIndex = 0;
+        writeIndex = 0;
+        scanIndex = 0;
+    }
+}
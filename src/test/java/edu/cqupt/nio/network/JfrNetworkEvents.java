@@ -0,0 +1,160 @@
+package edu.cqupt.nio.network;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 网络服务器的 JFR 事件，只通过 NetworkEvents 使用：只有确认 jdk.jfr 可用之后才会加载这个类
+ *
+ * begin*() 先检查事件是否被某个录制启用，没有启用时返回 null，不分配事件对象；
+ * 返回的事件对象交给对应的 end*()，end*() 中只有 shouldCommit() 为 true 时才填充字段并提交
+ */
+final class JfrNetworkEvents {
+    private static final EventType ACCEPT = EventType.getEventType(AcceptEvent.class);
+    private static final EventType READ = EventType.getEventType(ReadEvent.class);
+    private static final EventType DECODE = EventType.getEventType(DecodeEvent.class);
+    private static final EventType WRITE = EventType.getEventType(PartialWriteEvent.class);
+
+    private JfrNetworkEvents() {
+    }
+
+    private static Object begin(Event event) {
+        event.begin();
+        return event;
+    }
+
+    static Object beginAccept() {
+        return ACCEPT.isEnabled() ? begin(new AcceptEvent()) : null;
+    }
+
+    static void endAccept(Object token, int worker, int connections) {
+        AcceptEvent event = (AcceptEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.worker = worker;
+            event.connections = connections;
+            event.commit();
+        }
+    }
+
+    static Object beginRead() {
+        return READ.isEnabled() ? begin(new ReadEvent()) : null;
+    }
+
+    static void endRead(Object token, long connectionId, int bytes) {
+        ReadEvent event = (ReadEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.connectionId = connectionId;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    static Object beginDecode() {
+        return DECODE.isEnabled() ? begin(new DecodeEvent()) : null;
+    }
+
+    static void endDecode(Object token, long connectionId, int bytes, int frames) {
+        DecodeEvent event = (DecodeEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.connectionId = connectionId;
+            event.bytes = bytes;
+            event.frames = frames;
+            event.commit();
+        }
+    }
+
+    static Object beginWrite() {
+        return WRITE.isEnabled() ? begin(new PartialWriteEvent()) : null;
+    }
+
+    static void endWrite(Object token, SocketChannel channel, int requested, int written) throws IOException {
+        PartialWriteEvent event = (PartialWriteEvent) token;
+        event.end();
+        if (written < requested && event.shouldCommit()) {
+            event.remoteAddress = String.valueOf(channel.getRemoteAddress());
+            event.requested = requested;
+            event.written = written;
+            event.commit();
+        }
+    }
+
+    @Name("edu.cqupt.nio.Accept")
+    @Label("Accept")
+    @Category({"NIO", "Network"})
+    @Description("一次唤醒中连续 accept 的连接")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class AcceptEvent extends Event {
+        @Label("Worker")
+        @Description("负责 accept 的worker的下标，-1 表示Boss线程")
+        int worker;
+
+        @Label("Connections")
+        int connections;
+    }
+
+    @Name("edu.cqupt.nio.Read")
+    @Label("Read")
+    @Category({"NIO", "Network"})
+    @Description("一次从连接中读取数据")
+    @Threshold("500 us")
+    @StackTrace(false)
+    static class ReadEvent extends Event {
+        @Label("Connection Id")
+        long connectionId;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("edu.cqupt.nio.Decode")
+    @Label("Decode")
+    @Category({"NIO", "Network"})
+    @Description("按 \\n 拆分读到的数据并处理拆出来的消息")
+    @Threshold("500 us")
+    @StackTrace(false)
+    static class DecodeEvent extends Event {
+        @Label("Connection Id")
+        long connectionId;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+
+        @Label("Frames")
+        int frames;
+    }
+
+    @Name("edu.cqupt.nio.PartialWrite")
+    @Label("Partial Write")
+    @Category({"NIO", "Network"})
+    @Description("没有把缓冲区写完的一次写操作")
+    @Threshold("100 us")
+    @StackTrace(false)
+    static class PartialWriteEvent extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Requested")
+        @DataAmount
+        int requested;
+
+        @Label("Written")
+        @DataAmount
+        int written;
+    }
+}
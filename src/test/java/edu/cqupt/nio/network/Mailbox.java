@@ -0,0 +1,109 @@
+package edu.cqupt.nio.network;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * worker的任务邮箱：多个线程投递，只有worker线程取出（MPSC，多生产者单消费者）
+ *
+ * 1. 无锁链表：投递时用一次 getAndSet 把新节点换成 tail，再把原来的 tail 指向它；不需要 CAS 重试，
+ *    生产者之间只在 tail 上竞争一次。取出只由worker线程进行，head 是普通字段
+ * 2. 一次 drain() 最多执行 maxBatch 个任务，剩下的留到下一轮，任务再多也不会饿死 socket 的读写
+ * 3. wakeupPending 把多次唤醒合并成一次：一轮事件循环中只有第一个投递的线程需要调用 selector.wakeup()，
+ *    drain() 开始时清除标记，之后投递的任务会再唤醒一次
+ *
+ * 生产者 getAndSet 之后、链接上 next 之前，消费者会看到 tail 已经变了但是 next 还是 null，这时自旋等待链接完成
+ */
+class Mailbox {
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+    private final AtomicReference<Node> tail;
+    /**
+     * 已经取出的最后一个节点（哨兵），只在消费者线程中访问
+     */
+    private Node head;
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private final int maxBatch;
+
+    Mailbox(int maxBatch) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch must be positive");
+        }
+        this.maxBatch = maxBatch;
+        this.head = new Node(null);
+        this.tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * 投递任务，可以在任意线程中调用
+     */
+    void offer(Runnable task) {
+        Node node = new Node(task);
+        Node previous = tail.getAndSet(node);
+        NEXT.lazySet(previous, node);
+    }
+
+    /**
+     * 其他线程投递之后调用
+     *
+     * @return 为 true 时调用者需要唤醒消费者；上一次 drain() 之后已经有线程唤醒过时返回 false
+     */
+    boolean claimWakeup() {
+        return !wakeupPending.get() && wakeupPending.compareAndSet(false, true);
+    }
+
+    /**
+     * 只在消费者线程中调用
+     */
+    boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     * 执行最多 maxBatch 个任务，只在消费者线程中调用
+     *
+     * @return 执行的任务数
+     */
+    int drain() {
+        // 先清除标记再取任务：清除之前投递的任务这一轮一定能取到，之后投递的会重新唤醒
+        wakeupPending.set(false);
+        int n = 0;
+        while (n < maxBatch) {
+            Runnable task = poll();
+            if (task == null) {
+                break;
+            }
+            task.run();
+            n++;
+        }
+        return n;
+    }
+
+    private Runnable poll() {
+        Node next = head.next;
+        if (next == null) {
+            if (tail.get() == head) {
+                return null;
+            }
+            // 生产者已经换掉了 tail，还没有链接 next
+            while ((next = head.next) == null) {
+                Thread.yield();
+            }
+        }
+        head = next;
+        Runnable task = next.task;
+        next.task = null;
+        return task;
+    }
+
+    private static final class Node {
+        Runnable task;
+        volatile Node next;
+
+        Node(Runnable task) {
+            this.task = task;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package edu.cqupt.nio.network;
 
-import javafx.concurrent.Worker;
+import edu.cqupt.nio.byteBuffer.utils.RefCountedBuffer;
+import edu.cqupt.nio.fileChannel.LogCursor;
+import edu.cqupt.nio.fileChannel.MessageLog;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
@@ -10,20 +12,75 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import static edu.cqupt.nio.byteBuffer.utils.ByteBufferUtil.debugAll;
+import static edu.cqupt.nio.byteBuffer.utils.ByteBufferUtil.debugRead;
 
 /**
  * @author LWenH
  * @create 2021/7/15 - 11:02
  * <p>
  * 多线程 每个线程配合Selector多路复用 非阻塞式服务器
+ *
+ * 配置 -Dnio.log.dir 后，收到的每条消息都会追加到 MessageLog 中，持久化之后才向客户端回复 "ok 偏移量\n"
+ * 客户端发送 "SUB 偏移量\n" 后成为订阅者：服务器从该偏移量开始把日志通过 transferTo 推送给它，并持续推送新的消息
+ * 客户端发送 "PUB 内容\n" 时，内容会被广播给所有worker上的所有连接（见 Broadcaster）
+ * 客户端发送 "ID\n" 时回复 "id 连接id\n"；发送 "TO 连接id 内容\n" 时，内容会被发送给这个id的连接（见 ConnectionTable），
+ * 连接所在的worker不存在或者还没有启动时回复 "error\n"
+ * 其他线程（包括其他worker）交给worker的任务都投递到它的无锁邮箱中（见 Mailbox），由worker线程批量执行，
+ * 一个 channel 始终只被它所在的worker读写
+ *
+ * 建立连接有两种方式：
+ * 1. 默认由一个Boss线程 accept，再轮询交给worker。每次被唤醒时连续 accept 多个连接（最多 MAX_ACCEPT 个），
+ *    重连风暴时减少 select() 的次数
+ * 2. -Dnio.reusePort=true 并且 JDK 和操作系统支持 SO_REUSEPORT 时，每个worker各自绑定一个 ServerSocketChannel 到同一个端口，
+ *    由内核把新连接分散到各个worker，worker自己 accept，不再经过Boss线程转交
+ *
+ * 设置了 -Dnio.tls.keyStore 时连接使用 TLS 加密（见 TlsContext），握手和加解密都在worker线程中完成
+ * 设置了 -Dnio.compress 时连接上的数据双向压缩（见 CompressionCodec），压缩在 TLS 加密之前；压缩的连接不支持 SUB
+ * 设置了 -Dnio.shape.* 时限制每个连接和每个worker的发送速度（见 BandwidthShaper）
+ * 设置了 -Dnio.ring.bytes 时连接使用从worker的 RingSlab 中借出的环形缓冲区接收数据（见 InboundRing），
+ * 拆分消息不再 compact()，超过这个长度的消息会导致连接被关闭
+ * accept、read、拆分消息超过阈值时会产生 JFR 事件（见 NetworkEvents），只在开启了 JFR 录制时记录
  */
 @Slf4j
 public class MultiThreadSelectorServer {
+    /**
+     * 一次被唤醒时最多连续 accept 的连接数
+     */
+    static final int MAX_ACCEPT = 64;
+    /**
+     * 一轮事件循环中最多执行的邮箱任务数
+     */
+    static final int MAX_DRAIN = 1024;
+
     public static void main(String[] args) throws IOException {
+        // 可选的消息持久化
+        MessageLog messageLog = MessageLog.openFromSystemProperties();
+        // 可选的 TLS
+        TlsContext tlsContext = TlsContext.fromSystemProperties();
+        // 可选的压缩
+        CompressionCodec codec = CompressionCodec.fromSystemProperties();
+
+        // 创建固定数量的worker线程
+        Worker[] workers = new Worker[Runtime.getRuntime().availableProcessors()];
+        Broadcaster broadcaster = Broadcaster.fromSystemProperties(workers);
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, workers, messageLog, broadcaster, tlsContext, codec,
+                    BandwidthShaper.fromSystemProperties(), ReceiveBufferAllocator.fromSystemProperties(),
+                    RingSlab.fromSystemProperties());
+        }
+
+        if (Boolean.getBoolean("nio.reusePort") && listenOnEachWorker(workers, 8080)) {
+            log.debug("SO_REUSEPORT enabled, every worker accepts by itself");
+            return;
+        }
+
         // 主线程（Boss线程 ），只负责处理Accept事件
         Thread.currentThread().setName("Boss");
         ServerSocketChannel ssc = ServerSocketChannel.open();
@@ -32,11 +89,6 @@ public class MultiThreadSelectorServer {
         Selector bossSelector = Selector.open();
         SelectionKey bossKey = ssc.register(bossSelector, SelectionKey.OP_ACCEPT);
 
-        // 创建固定数量的worker线程
-        Worker[] workers = new Worker[Runtime.getRuntime().availableProcessors()];
-        for (int i = 0; i < workers.length; i++) {
-            workers[i] = new Worker("worker-" + i);
-        }
         // 用于选择worker的标记
         AtomicInteger index = new AtomicInteger();
         while (true) {
@@ -47,24 +99,60 @@ public class MultiThreadSelectorServer {
                 iterator.remove();
                 if (key.isAcceptable()) {
                     log.debug("server wait for connect...");
-                    // 服务端和客户端建立连接
-                    SocketChannel socketChannel = ssc.accept();
-                    log.debug("server successful connected...{}", socketChannel);
-                    socketChannel.configureBlocking(false);
-                    log.debug("before worker init...");
-                    /*
-                        对worker进行初始化
-                        因为有多个worker，要将socketChannel注册在不同的worker的selector上
-                        每个worker的selector就会监听这些channel发生的事件，然后对事件进行处理。
+                    // 服务端和客户端建立连接，一次唤醒处理多个连接，没有更多连接时 accept() 返回 null
+                    Object event = NetworkEvents.beginAccept();
+                    SocketChannel socketChannel;
+                    int n = 0;
+                    for (; n < MAX_ACCEPT && (socketChannel = ssc.accept()) != null; n++) {
+                        log.debug("server successful connected...{}", socketChannel);
+                        socketChannel.configureBlocking(false);
+                        log.debug("before worker init...");
+                        /*
+                            对worker进行初始化
+                            因为有多个worker，要将socketChannel注册在不同的worker的selector上
+                            每个worker的selector就会监听这些channel发生的事件，然后对事件进行处理。
+
+                            要让channel平均的分 配给每个worker，做一个类似负载均衡的操作
+                            这里采用一种round robin 轮询的方式，将channel平均的和每一个worker关联起来
+                         */
+                        workers[index.getAndIncrement() % workers.length].initialize(socketChannel);
+                        log.debug("after worker init...");
+                    }
+                    NetworkEvents.endAccept(event, -1, n);
+                }
+            }
+        }
+    }
 
-                        要让channel平均的分 配给每个worker，做一个类似负载均衡的操作
-                        这里采用一种round robin 轮询的方式，将channel平均的和每一个worker关联起来
-                     */
-                    workers[index.getAndIncrement() % workers.length].initialize(socketChannel);
-                     log.debug("after worker init...");
+    /**
+     * 为每个worker绑定一个开启了 SO_REUSEPORT 的 ServerSocketChannel
+     *
+     * @return 不支持 SO_REUSEPORT 或者某个 channel 绑定失败时关闭已经打开的 channel 并返回 false，由Boss线程负责 accept
+     */
+    private static boolean listenOnEachWorker(Worker[] workers, int port) throws IOException {
+        ServerSocketChannel[] channels = new ServerSocketChannel[workers.length];
+        for (int i = 0; i < workers.length; i++) {
+            try {
+                channels[i] = ServerSocketChannel.open();
+                if (!ReusePort.enable(channels[i])) {
+                    throw new IOException("SO_REUSEPORT is not supported");
                 }
+                channels[i].bind(new InetSocketAddress(port));
+                channels[i].configureBlocking(false);
+            } catch (IOException e) {
+                log.debug("listen on each worker failed, fall back to the boss thread...{}", e.toString());
+                for (int j = 0; j <= i; j++) {
+                    if (channels[j] != null) {
+                        channels[j].close();
+                    }
+                }
+                return false;
             }
         }
+        for (int i = 0; i < workers.length; i++) {
+            workers[i].listen(channels[i]);
+        }
+        return true;
     }
 
     /**
@@ -76,17 +164,94 @@ public class MultiThreadSelectorServer {
      * 多线程非阻塞指的是：有多个worker（多线程），每个worker仍然使用selector 非阻塞 多路复用
      */
     static class Worker implements Runnable {
+        private static final byte[] SUB = "SUB ".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] PUB = "PUB ".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] ID = "ID".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TO = "TO ".getBytes(StandardCharsets.US_ASCII);
         private Thread thread;
         private Selector workSelector;
         private String name;
+        /**
+         * 在 workers 中的下标，会被编码进这个worker上的连接id
+         */
+        private final int index;
+        private final Worker[] workers;
+        /**
+         * 这个worker上的所有连接，只在worker线程中访问
+         */
+        private final ConnectionTable connections = new ConnectionTable(64);
+        private long nextSequence;
         /**
          * 初始化标记
          * 一个Worker仅被初始化一次。当被初始化过后，标记改为true。
          */
         private volatile boolean initFlag = false;
+        /**
+         * 其他线程交给worker执行的任务，例如注册新的channel、发送持久化确认、其他worker路由过来的消息
+         * channel 只在 worker 自己的线程中读写，不会有多个线程同时操作
+         */
+        private final Mailbox mailbox = new Mailbox(MAX_DRAIN);
+        /**
+         * 执行邮箱中的任务期间为 true，这期间连接的发送先放入队列，任务执行完之后每个连接只 flush 一次
+         */
+        private boolean draining;
+        private final List<Connection> deferredFlushes = new ArrayList<>();
+        /**
+         * 为 null 时不持久化
+         */
+        private final MessageLog messageLog;
+        private final Broadcaster broadcaster;
+        /**
+         * 为 null 时不加密
+         */
+        private final TlsContext tlsContext;
+        /**
+         * 为 null 时不压缩
+         */
+        private final CompressionCodec codec;
+        /**
+         * 为 null 时不限速
+         */
+        private final BandwidthShaper shaper;
+        /**
+         * 这个worker上所有连接的接收缓冲区
+         */
+        private final ReceiveBufferAllocator receiveBuffers;
+        /**
+         * 为 null 时不使用环形缓冲区
+         */
+        private final RingSlab ringSlab;
+        /**
+         * 这个worker上订阅了日志的连接，只在worker线程中访问
+         */
+        private final List<Connection> subscribers = new ArrayList<>();
+        private volatile int subscriberCount;
+        /**
+         * 多次组提交只安排一次推送任务
+         */
+        private final AtomicBoolean pushScheduled = new AtomicBoolean();
+        private final Runnable pushTask = this::pushToSubscribers;
 
-        public Worker(String name) {
-            this.name = name;
+        public Worker(int index, Worker[] workers, MessageLog messageLog, Broadcaster broadcaster,
+                      TlsContext tlsContext, CompressionCodec codec, BandwidthShaper shaper,
+                      ReceiveBufferAllocator receiveBuffers, RingSlab ringSlab) {
+            this.name = "worker-" + index;
+            this.index = index;
+            this.workers = workers;
+            this.messageLog = messageLog;
+            this.broadcaster = broadcaster;
+            this.tlsContext = tlsContext;
+            this.codec = codec;
+            this.shaper = shaper;
+            this.receiveBuffers = receiveBuffers;
+            this.ringSlab = ringSlab;
+            if (messageLog != null) {
+                messageLog.addCommitListener(() -> {
+                    if (subscriberCount > 0 && pushScheduled.compareAndSet(false, true)) {
+                        execute(pushTask);
+                    }
+                });
+            }
         }
 
         /**
@@ -95,41 +260,415 @@ public class MultiThreadSelectorServer {
          * @throws IOException
          */
         public void initialize(SocketChannel socketChannel) throws IOException {
+            start();
+            /*
+                register() 和 select() 在同一个 selector 上会互相阻塞，
+                所以把注册交给 worker 线程自己执行，再通过 wakeup() 让它从 select() 中返回
+             */
+            execute(() -> register(socketChannel));
+        }
+
+        /**
+         * 由worker自己监听并 accept 连接
+         * @param serverSocketChannel 已经绑定好端口的非阻塞 ServerSocketChannel
+         */
+        public void listen(ServerSocketChannel serverSocketChannel) throws IOException {
+            start();
+            execute(() -> {
+                try {
+                    serverSocketChannel.register(workSelector, SelectionKey.OP_ACCEPT);
+                } catch (IOException e) {
+                    // 关闭之后内核不会再把新连接分给这个 channel，其他worker照常 accept
+                    log.error("{} listen failed, its channel is closed...", name, e);
+                    try {
+                        serverSocketChannel.close();
+                    } catch (IOException closeFailed) {
+                        log.debug("close failed...", closeFailed);
+                    }
+                }
+            });
+        }
+
+        private synchronized void start() throws IOException {
             if (! initFlag) {
                 workSelector = Selector.open();
-                new Thread(this, name).start();
+                thread = new Thread(this, name);
+                thread.start();
                 initFlag = true;
             }
-            // wakeup()无论是执行在select()方法的前还是后，都能够唤醒线程，结束掉等待任务的阻塞状态。
-            workSelector.wakeup();
-            socketChannel.register(workSelector, SelectionKey.OP_READ);
+        }
+
+        /**
+         * 在worker线程中把连接注册到自己的selector上
+         */
+        private void register(SocketChannel socketChannel) {
+            try {
+                SelectionKey key = socketChannel.register(workSelector, SelectionKey.OP_READ);
+                Connection connection = new Connection(socketChannel, key, receiveBuffers);
+                if (tlsContext != null) {
+                    connection.tls = tlsContext.newServerChannel(socketChannel, key, this::execute, () -> resume(connection));
+                }
+                if (codec != null) {
+                    connection.compress(codec, this::execute);
+                }
+                if (shaper != null) {
+                    connection.shape(shaper);
+                }
+                if (ringSlab != null) {
+                    connection.useRing(ringSlab);
+                }
+                connection.deferFlushes(this::deferFlush);
+                connection.id = ConnectionTable.id(index, ++nextSequence);
+                connection.table = connections;
+                connections.put(connection.id, connection);
+                key.attach(connection);
+            } catch (IOException e) {
+                log.debug("register failed...", e);
+            }
+        }
+
+        /**
+         * TLS 握手有了进展之后继续处理这个连接：握手期间可能已经收到了数据，也可能有等待握手完成的数据要发送
+         */
+        private void resume(Connection connection) {
+            if (!connection.key.isValid()) {
+                return;
+            }
+            try {
+                read(connection);
+                if (connection.key.isValid()) {
+                    connection.flush();
+                }
+            } catch (IOException e) {
+                log.debug("resume failed...{}", e.toString());
+                connection.close();
+            }
+        }
+
+        /**
+         * 一次唤醒时连续 accept 多个连接，直接注册到自己的selector上
+         */
+        private void accept(ServerSocketChannel serverSocketChannel) throws IOException {
+            Object event = NetworkEvents.beginAccept();
+            SocketChannel socketChannel;
+            int n = 0;
+            for (; n < MAX_ACCEPT && (socketChannel = serverSocketChannel.accept()) != null; n++) {
+                log.debug("server successful connected...{}", socketChannel);
+                socketChannel.configureBlocking(false);
+                register(socketChannel);
+            }
+            NetworkEvents.endAccept(event, index, n);
+        }
+
+        public boolean isInitialized() {
+            return initFlag;
+        }
+
+        /**
+         * 把广播消息交给这个worker上的连接，worker处理完之后释放调用者为它持有的引用
+         */
+        public void broadcast(Broadcaster broadcaster, RefCountedBuffer shared) {
+            execute(() -> {
+                broadcaster.deliver(workSelector.keys(), shared);
+                shared.release();
+            });
+        }
+
+        /**
+         * 把消息发送给这个worker上的某个连接，可以在任意线程中调用，连接已经关闭时丢弃
+         *
+         * @param data 调用之后不能再修改
+         */
+        public void send(long id, ByteBuffer data) {
+            execute(() -> {
+                Connection connection = connections.get(id);
+                if (connection != null) {
+                    connection.send(data);
+                }
+            });
+        }
+
+        /**
+         * 根据 id 找到连接所在的worker，把消息（复制一份，加上 \n）交给它
+         *
+         * @return id 对应的worker不存在（超出范围，或者还没有启动，它的 selector 还没有创建）时返回 false
+         */
+        private boolean route(long id, ByteBuffer message) {
+            int owner = ConnectionTable.workerOf(id);
+            if (owner >= workers.length || workers[owner] == null || !workers[owner].isInitialized()) {
+                return false;
+            }
+            ByteBuffer data = ByteBuffer.allocate(message.remaining() + 1);
+            data.put(message).put((byte) '\n').flip();
+            if (owner == index) {
+                // 同一个worker上的连接不需要经过任务队列
+                Connection connection = connections.get(id);
+                if (connection != null) {
+                    connection.send(data);
+                }
+            } else {
+                workers[owner].send(id, data);
+            }
+            return true;
+        }
+
+        /**
+         * 在worker线程中执行任务，可以在任意线程中调用
+         */
+        public void execute(Runnable task) {
+            mailbox.offer(task);
+            // worker自己投递的任务在这一轮结束前就会被看到（见 run()），不需要唤醒
+            if (Thread.currentThread() != thread && mailbox.claimWakeup()) {
+                // wakeup()无论是执行在select()方法的前还是后，都能够唤醒线程，结束掉等待任务的阻塞状态。
+                workSelector.wakeup();
+            }
+        }
+
+        /**
+         * 执行邮箱中的任务，任务中发送给连接的数据攒到最后一起 flush
+         */
+        private void drainMailbox() {
+            draining = true;
+            try {
+                mailbox.drain();
+            } finally {
+                draining = false;
+            }
+            for (Connection connection : deferredFlushes) {
+                if (connection.key.isValid()) {
+                    connection.flush();
+                }
+            }
+            deferredFlushes.clear();
+        }
+
+        private boolean deferFlush(Connection connection) {
+            if (!draining) {
+                return false;
+            }
+            deferredFlushes.add(connection);
+            return true;
         }
 
         @Override
         public void run() {
             while (true) {
                 try {
-                    workSelector.select();
+                    if (mailbox.isEmpty()) {
+                        // 有连接在等待令牌时，select() 最多阻塞到最早的那个连接可以恢复发送
+                        workSelector.select(shaper == null ? 0 : shaper.timeoutMillis(System.nanoTime()));
+                    } else {
+                        // 还有任务（worker自己投递的，或者上一轮没有执行完的），不能阻塞
+                        workSelector.selectNow();
+                    }
+                    drainMailbox();
                     Iterator<SelectionKey> iterator = workSelector.selectedKeys().iterator();
                     while (iterator.hasNext()) {
                         SelectionKey key = iterator.next();
                         iterator.remove();
-                        if (key.isReadable()) {
-                            ByteBuffer byteBuffer = ByteBuffer.allocate(32);
-                            SocketChannel channel = (SocketChannel) key.channel();
-                            log.debug("read...{}", channel);
-                            channel.read(byteBuffer);
-                            byteBuffer.flip();
-                            debugAll(byteBuffer);
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                read(connection);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException e) {
+                            // 客户端异常断开
+                            log.debug("read failed...{}", e.toString());
+                            connection.close();
                         }
                     }
+                    if (shaper != null) {
+                        shaper.resumeDue(System.nanoTime());
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
         }
-    }
-}
 
+        private void read(Connection connection) throws IOException {
+            log.debug("read...{}", connection.channel);
+            try {
+                do {
+                    Object readEvent = NetworkEvents.beginRead();
+                    int read = connection.read();
+                    NetworkEvents.endRead(readEvent, connection.id, read);
+                    if (read == -1) {
+                        // 正常断开
+                        connection.close();
+                        return;
+                    }
+                    Object decodeEvent = NetworkEvents.beginDecode();
+                    int bytes = connection.bufferedBytes();
+                    int frames = split(connection);
+                    NetworkEvents.endDecode(decodeEvent, connection.id, bytes, frames);
+                    connection.ensureCapacity();
+                } while (connection.hasBufferedInput());
+            } finally {
+                // 没有半包时归还接收缓冲区
+                connection.releaseIdleBuffer();
+            }
+        }
 
+        /**
+         * 按 \n 拆分消息，保留半包
+         *
+         * @return 拆出来的消息数
+         */
+        private int split(Connection connection) {
+            if (connection.ring != null) {
+                // 环形缓冲区只推进读指针，不需要 compact()
+                int frames = 0;
+                ByteBuffer frame;
+                while ((frame = connection.ring.nextFrame()) != null) {
+                    onFrame(connection, frame);
+                    frames++;
+                }
+                return frames;
+            }
+            ByteBuffer buffer = connection.inbound;
+            buffer.flip();
+            int frames = 0;
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    ByteBuffer frame = buffer.duplicate();
+                    frame.limit(i);
+                    onFrame(connection, frame);
+                    buffer.position(i + 1);
+                    frames++;
+                }
+            }
+            buffer.compact();
+            return frames;
+        }
+
+        private void onFrame(Connection connection, ByteBuffer frame) {
+            if (log.isDebugEnabled()) {
+                debugRead(frame);
+            }
+            if (connection.subscribing()) {
+                return;
+            }
+            if (startsWith(frame, PUB)) {
+                frame.position(frame.position() + PUB.length);
+                broadcaster.publish(frame);
+                return;
+            }
+            if (frame.remaining() == ID.length && startsWith(frame, ID)) {
+                connection.send(StandardCharsets.US_ASCII.encode("id " + connection.id + "\n"));
+                return;
+            }
+            if (startsWith(frame, TO)) {
+                to(connection, frame);
+                return;
+            }
+            if (messageLog == null) {
+                return;
+            }
+            if (startsWith(frame, SUB)) {
+                frame.position(frame.position() + SUB.length);
+                subscribe(connection, StandardCharsets.US_ASCII.decode(frame).toString().trim());
+                return;
+            }
+            // 持久化完成的回调在 log-flusher 线程中执行，确认消息要交回给 worker 线程发送
+            connection.pendingAcks++;
+            messageLog.append(frame).whenComplete((offset, e) -> execute(() -> {
+                connection.pendingAcks--;
+                if (e == null) {
+                    connection.send(StandardCharsets.US_ASCII.encode("ok " + offset + "\n"));
+                } else {
+                    connection.send(StandardCharsets.US_ASCII.encode("error\n"));
+                }
+            }));
+        }
 
+        /**
+         * "TO 连接id 内容"
+         */
+        private void to(Connection connection, ByteBuffer frame) {
+            int start = frame.position() + TO.length;
+            int space = start;
+            while (space < frame.limit() && frame.get(space) != ' ') {
+                space++;
+            }
+            long id = 0;
+            for (int i = start; i < space; i++) {
+                byte b = frame.get(i);
+                // 不是数字，或者超过 Long.MAX_VALUE（否则会溢出成负数）
+                if (b < '0' || b > '9' || id > (Long.MAX_VALUE - (b - '0')) / 10) {
+                    id = 0;
+                    break;
+                }
+                id = id * 10 + (b - '0');
+            }
+            if (id == 0 || space == frame.limit()) {
+                connection.send(StandardCharsets.US_ASCII.encode("error\n"));
+                return;
+            }
+            frame.position(space + 1);
+            if (!route(id, frame)) {
+                connection.send(StandardCharsets.US_ASCII.encode("error\n"));
+            }
+        }
+
+        private static boolean startsWith(ByteBuffer frame, byte[] prefix) {
+            if (frame.remaining() < prefix.length) {
+                return false;
+            }
+            for (int i = 0; i < prefix.length; i++) {
+                if (frame.get(frame.position() + i) != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 连接成为订阅者，从 offset 开始接收日志
+         */
+        private void subscribe(Connection connection, String offset) {
+            if (connection.encoder != null) {
+                // 订阅者通过 transferTo 直接发送日志文件，无法经过压缩
+                connection.send(StandardCharsets.US_ASCII.encode("error\n"));
+                return;
+            }
+            LogCursor cursor;
+            try {
+                cursor = messageLog.cursor(Long.parseLong(offset));
+            } catch (NumberFormatException | IOException e) {
+                log.debug("subscribe failed...{}", e.toString());
+                connection.send(StandardCharsets.US_ASCII.encode("error\n"));
+                return;
+            }
+            log.debug("subscribe...{} from {}", connection.channel, offset);
+            subscribers.add(connection);
+            subscriberCount = subscribers.size();
+            // 之前的消息的确认还没有全部发出时，等它们发完再开始发送日志
+            connection.subscribe(cursor);
+        }
+
+        /**
+         * 有新的消息持久化之后，推送给还在等待的订阅者
+         */
+        private void pushToSubscribers() {
+            pushScheduled.set(false);
+            Iterator<Connection> iterator = subscribers.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (!connection.key.isValid()) {
+                    iterator.remove();
+                    continue;
+                }
+                connection.flush();
+            }
+            subscriberCount = subscribers.size();
+        }
+    }
+}
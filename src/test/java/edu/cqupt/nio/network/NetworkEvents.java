@@ -0,0 +1,89 @@
+package edu.cqupt.nio.network;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+
+/**
+ * 网络服务器的 JFR（JDK Flight Recorder）自定义事件，事件类见 JfrNetworkEvents
+ *
+ * 1. 没有开启 JFR 录制（或者录制没有启用这个事件）时，begin*() 只检查一次缓存的 EventType.isEnabled() 就返回 null，不分配事件对象
+ * 2. 每个事件都有默认的阈值，只记录耗时超过阈值的慢操作；阈值可以在 .jfc 配置中修改，例如
+ *    <event name="edu.cqupt.nio.Read"><setting name="threshold">0 ns</setting></event>
+ * 3. 不记录调用栈，事件的字段只有连接 id、字节数，持续时间由 begin()/end() 自动记录
+ * 4. jdk.jfr 在 JDK 11 以及 8u262 之后的 OpenJDK 8 中提供。这个类不引用 jdk.jfr，先检查 jdk.jfr 是否可用，
+ *    不可用时 begin*() 返回 null，end*() 什么也不做，不会加载 JfrNetworkEvents，服务器在没有 JFR 的 JDK 8 上也能运行
+ *
+ * 用法：-XX:StartFlightRecording=filename=nio.jfr,settings=profile，之后用 jfr print --categories NIO nio.jfr 查看
+ *
+ * begin*() 返回的对象（可能是 null）只能交给对应的 end*()
+ */
+final class NetworkEvents {
+    static final boolean AVAILABLE = jfrAvailable();
+
+    private NetworkEvents() {
+    }
+
+    private static boolean jfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, NetworkEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * 一次唤醒中连续 accept 连接
+     */
+    static Object beginAccept() {
+        return AVAILABLE ? JfrNetworkEvents.beginAccept() : null;
+    }
+
+    /**
+     * @param worker 负责 accept 的worker的下标，-1 表示Boss线程
+     */
+    static void endAccept(Object event, int worker, int connections) {
+        if (event != null) {
+            JfrNetworkEvents.endAccept(event, worker, connections);
+        }
+    }
+
+    /**
+     * 一次从连接中读取数据
+     */
+    static Object beginRead() {
+        return AVAILABLE ? JfrNetworkEvents.beginRead() : null;
+    }
+
+    static void endRead(Object event, long connectionId, int bytes) {
+        if (event != null) {
+            JfrNetworkEvents.endRead(event, connectionId, bytes);
+        }
+    }
+
+    /**
+     * 按 \n 拆分读到的数据并处理拆出来的消息
+     */
+    static Object beginDecode() {
+        return AVAILABLE ? JfrNetworkEvents.beginDecode() : null;
+    }
+
+    static void endDecode(Object event, long connectionId, int bytes, int frames) {
+        if (event != null) {
+            JfrNetworkEvents.endDecode(event, connectionId, bytes, frames);
+        }
+    }
+
+    /**
+     * 一次写操作，没有写完时才记录
+     */
+    static Object beginWrite() {
+        return AVAILABLE ? JfrNetworkEvents.beginWrite() : null;
+    }
+
+    static void endWrite(Object event, SocketChannel channel, int requested, int written) throws IOException {
+        if (event != null) {
+            JfrNetworkEvents.endWrite(event, channel, requested, written);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package edu.cqupt.nio.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * 异步、流水线（pipelining）的客户端，协议和服务器一致：请求和响应都是以 \n 结尾的一行
+ *
+ * Client 一次只能发一条消息，等响应的时候连接是空闲的。这里不等前面的响应就继续发送后面的请求：
+ * 1. 启动时建立一组连接（连接池），由一个线程上的 selector 驱动，请求轮流分配给各个连接
+ * 2. request() 可以在任意线程中调用，请求放入队列后立即返回 CompletableFuture，收到响应时完成
+ * 3. 匹配响应：默认按顺序（服务器对同一个连接上的请求按顺序响应），
+ *    也可以传入 responseId，从响应中解析出请求id，按id匹配（服务器可以乱序响应）
+ * 4. 同一轮事件循环中分配到同一个连接的请求合并到一个缓冲区，一次 write() 写出，减少系统调用
+ * 5. 每个请求有自己的超时时间，到期时 future 以 TimeoutException 失败。按顺序匹配时，
+ *    超时请求的响应到达后直接丢弃，不会错配给后面的请求
+ *
+ * future 在客户端的线程中完成，回调中不要执行阻塞操作
+ */
+@Slf4j
+public class PipelinedClient implements Closeable, Runnable {
+    /**
+     * 一个连接上攒的请求超过这个字节数时先写出一部分
+     */
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    private final Selector selector;
+    private final List<ClientConnection> connections = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Request> submissions = new ConcurrentLinkedQueue<>();
+    /**
+     * 已经调用过 wakeup() 还没有被处理，多个线程同时提交请求时只唤醒一次
+     */
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    /**
+     * 还没有完成的请求，按到期时间排序（到期时间相同时按分配的顺序）。收到响应或连接失败时立即移除，
+     * 完成的请求不会一直留到超时时间才释放
+     */
+    private final TreeSet<Request> deadlines = new TreeSet<>(
+            Comparator.comparingLong((Request r) -> r.deadline).thenComparingLong(r -> r.sequence));
+    private final List<ClientConnection> dirty = new ArrayList<>();
+    /**
+     * 为 null 时按顺序匹配
+     */
+    private final ToLongFunction<String> responseId;
+    private final long timeoutMillis;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private int next;
+    private long sequence;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+
+    /**
+     * 按顺序匹配响应
+     */
+    public PipelinedClient(InetSocketAddress address, int connections, long timeoutMillis) throws IOException {
+        this(address, connections, timeoutMillis, null);
+    }
+
+    /**
+     * @param timeoutMillis 默认的请求超时时间
+     * @param responseId    从响应中解析出对应的请求id，为 null 时按顺序匹配
+     */
+    public PipelinedClient(InetSocketAddress address, int connections, long timeoutMillis,
+                           ToLongFunction<String> responseId) throws IOException {
+        this.timeoutMillis = timeoutMillis;
+        this.responseId = responseId;
+        this.selector = Selector.open();
+        try {
+            for (int i = 0; i < connections; i++) {
+                SocketChannel sc = SocketChannel.open(address);
+                sc.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                sc.configureBlocking(false);
+                SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+                ClientConnection connection = new ClientConnection(sc, key);
+                key.attach(connection);
+                this.connections.add(connection);
+            }
+        } catch (IOException e) {
+            for (ClientConnection connection : this.connections) {
+                connection.channel.close();
+            }
+            selector.close();
+            throw e;
+        }
+        this.thread = new Thread(this, "pipelined-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 使用默认超时时间发送一个请求，按顺序匹配响应
+     *
+     * @param line 不含 \n
+     */
+    public CompletableFuture<String> request(String line) {
+        return request(0, line, timeoutMillis);
+    }
+
+    public CompletableFuture<String> request(String line, long timeoutMillis) {
+        return request(0, line, timeoutMillis);
+    }
+
+    /**
+     * @param id 按id匹配时，responseId 从响应中解析出的就是这个id，同一时间不能有两个相同id的请求
+     */
+    public CompletableFuture<String> request(long id, String line, long timeoutMillis) {
+        if (line.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("request must not contain \\n");
+        }
+        Request request = new Request(id, StandardCharsets.UTF_8.encode(line + "\n"),
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        if (!running) {
+            request.future.completeExceptionally(new IOException("client closed"));
+            return request.future;
+        }
+        submissions.add(request);
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return request.future;
+    }
+
+    /**
+     * 平均每次 write() 系统调用写出的请求数
+     */
+    public double requestsPerWrite() {
+        long w = writes.sum();
+        return w == 0 ? 0 : (double) requests.sum() / w;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long timeout = nextTimeout();
+                if (timeout < 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+                wakeupPending.set(false);
+                drainSubmissions();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    ClientConnection connection = (ClientConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    } catch (IOException e) {
+                        connection.fail(e);
+                    }
+                }
+                expire();
+            }
+        } catch (IOException e) {
+            log.debug("client loop failed...", e);
+        } finally {
+            running = false;
+            IOException closed = new IOException("client closed");
+            for (ClientConnection connection : new ArrayList<>(connections)) {
+                connection.fail(closed);
+            }
+            Request request;
+            while ((request = submissions.poll()) != null) {
+                request.future.completeExceptionally(closed);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                log.debug("close selector failed...", e);
+            }
+        }
+    }
+
+    /**
+     * @return 到最早一个请求超时还有多少毫秒，0 表示没有等待中的请求（一直阻塞），-1 表示已经有请求超时
+     */
+    private long nextTimeout() {
+        if (deadlines.isEmpty()) {
+            return 0;
+        }
+        long nanos = deadlines.first().deadline - System.nanoTime();
+        return nanos <= 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(nanos) + 1;
+    }
+
+    /**
+     * 把新的请求分配给连接，同一个连接上的请求合并写出
+     */
+    private void drainSubmissions() {
+        Request request;
+        while ((request = submissions.poll()) != null) {
+            if (connections.isEmpty()) {
+                request.future.completeExceptionally(new IOException("no connection available"));
+                continue;
+            }
+            ClientConnection connection = connections.get(next++ % connections.size());
+            request.sequence = sequence++;
+            deadlines.add(request);
+            connection.enqueue(request);
+            if (!connection.dirty) {
+                connection.dirty = true;
+                dirty.add(connection);
+            }
+        }
+        for (ClientConnection connection : dirty) {
+            connection.dirty = false;
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                connection.fail(e);
+            }
+        }
+        dirty.clear();
+    }
+
+    private void expire() {
+        long now = System.nanoTime();
+        // 调用者 cancel() 的请求到期时才移除
+        while (!deadlines.isEmpty() && deadlines.first().deadline - now <= 0) {
+            Request head = deadlines.pollFirst();
+            head.future.completeExceptionally(new TimeoutException("request timed out"));
+            if (responseId != null && head.connection != null) {
+                head.connection.byId.remove(head.id, head);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        if (Thread.currentThread() == thread) {
+            // 在 future 的回调中关闭，事件循环在这一轮结束后退出
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Request {
+        final long id;
+        final ByteBuffer data;
+        final long deadline;
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        ClientConnection connection;
+        long sequence;
+
+        Request(long id, ByteBuffer data, long deadline) {
+            this.id = id;
+            this.data = data;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * 连接池中的一个连接，只在客户端的线程中使用
+     */
+    private class ClientConnection {
+        final SocketChannel channel;
+        final SelectionKey key;
+        /**
+         * 还没有写出去的请求（写模式）
+         */
+        ByteBuffer outbound = ByteBuffer.allocate(4096);
+        /**
+         * 收到的响应（写模式）
+         */
+        ByteBuffer inbound = ByteBuffer.allocate(4096);
+        /**
+         * 按顺序匹配时，等待响应的请求
+         */
+        final ArrayDeque<Request> inflight = new ArrayDeque<>();
+        /**
+         * 按id匹配时，等待响应的请求
+         */
+        final Map<Long, Request> byId = new HashMap<>();
+        /**
+         * outbound 中的请求数，写出时计入统计
+         */
+        int batched;
+        boolean dirty;
+
+        ClientConnection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void enqueue(Request request) {
+            request.connection = this;
+            if (responseId == null) {
+                inflight.add(request);
+            } else if (byId.put(request.id, request) != null) {
+                log.debug("duplicate request id...{}", request.id);
+            }
+            if (outbound.remaining() < request.data.remaining()) {
+                ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(outbound.capacity() * 2,
+                        outbound.position() + request.data.remaining()));
+                outbound.flip();
+                newBuffer.put(outbound);
+                outbound = newBuffer;
+            }
+            outbound.put(request.data);
+            batched++;
+            if (outbound.position() >= MAX_BATCH_BYTES) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            outbound.flip();
+            try {
+                if (outbound.hasRemaining()) {
+                    channel.write(outbound);
+                    writes.increment();
+                    requests.add(batched);
+                    batched = 0;
+                }
+            } finally {
+                outbound.compact();
+            }
+            if (outbound.position() > 0) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void read() throws IOException {
+            if (channel.read(inbound) < 0) {
+                throw new IOException("connection closed by server");
+            }
+            inbound.flip();
+            for (int i = inbound.position(); i < inbound.limit(); i++) {
+                if (inbound.get(i) == '\n') {
+                    ByteBuffer line = inbound.duplicate();
+                    line.limit(i);
+                    onResponse(StandardCharsets.UTF_8.decode(line).toString());
+                    inbound.position(i + 1);
+                }
+            }
+            inbound.compact();
+            if (!inbound.hasRemaining()) {
+                // 一条响应比缓冲区大，扩容
+                ByteBuffer newBuffer = ByteBuffer.allocate(inbound.capacity() * 2);
+                inbound.flip();
+                newBuffer.put(inbound);
+                inbound = newBuffer;
+            }
+        }
+
+        private void onResponse(String response) {
+            Request request;
+            if (responseId == null) {
+                request = inflight.poll();
+            } else {
+                request = byId.remove(responseId.applyAsLong(response));
+            }
+            if (request == null) {
+                log.debug("unexpected response...{}", response);
+                return;
+            }
+            deadlines.remove(request);
+            // 已经超时的请求 complete() 返回 false，响应被丢弃
+            request.future.complete(response);
+        }
+
+        /**
+         * 连接不可用，等待中的请求全部失败，之后的请求分配给其他连接
+         */
+        void fail(IOException e) {
+            log.debug("connection failed...{}", e.toString());
+            connections.remove(this);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            for (Request request : inflight) {
+                deadlines.remove(request);
+                request.future.completeExceptionally(e);
+            }
+            for (Request request : byId.values()) {
+                deadlines.remove(request);
+                request.future.completeExceptionally(e);
+            }
+            inflight.clear();
+            byId.clear();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package edu.cqupt.nio.network;
+
+import edu.cqupt.aio.AioServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * PipelinedClient 和一问一答的阻塞客户端的对比，服务端是 AioServer（按行回写）
+ *
+ * -Dbench.requests=流水线客户端发送的请求数，默认 20000，对比吞吐量时调大（例如 200000）
+ */
+public class PipelinedClientBenchmark {
+    @Test
+    public void testPipelining() throws Exception {
+        int total = Integer.getInteger("bench.requests", 20000);
+        try (AioServer server = new AioServer(0, 2, 1024)) {
+            server.start();
+            InetSocketAddress address = new InetSocketAddress("localhost", server.port());
+
+            // 一问一答：每个请求都要等上一个响应回来
+            int blockingTotal = Math.max(total / 20, 1);
+            long start = System.nanoTime();
+            try (SocketChannel sc = SocketChannel.open(address)) {
+                ByteBuffer response = ByteBuffer.allocate(64);
+                for (int i = 0; i < blockingTotal; i++) {
+                    sc.write(StandardCharsets.UTF_8.encode("request-" + i + "\n"));
+                    response.clear();
+                    while (response.position() == 0 || response.get(response.position() - 1) != '\n') {
+                        sc.read(response);
+                    }
+                }
+            }
+            long blockingNanos = System.nanoTime() - start;
+            System.out.printf("blocking : %d requests, %.0f requests/s%n",
+                    blockingTotal, blockingTotal * 1e9 / blockingNanos);
+
+            try (PipelinedClient client = new PipelinedClient(address, 4, 10000)) {
+                // 预热
+                run(client, total / 4);
+                start = System.nanoTime();
+                run(client, total);
+                long nanos = System.nanoTime() - start;
+                System.out.printf("pipelined: %d requests, %.0f requests/s, %.1f requests per write%n",
+                        total, total * 1e9 / nanos, client.requestsPerWrite());
+            }
+        }
+    }
+
+    private static void run(PipelinedClient client, int total) throws Exception {
+        List<CompletableFuture<String>> futures = new ArrayList<>(total);
+        for (int i = 0; i < total; i++) {
+            futures.add(client.request("request-" + i));
+        }
+        for (int i = 0; i < total; i++) {
+            Assert.assertEquals("request-" + i, futures.get(i).get());
+        }
+    }
+
+    /**
+     * 服务端接受连接但是从不响应，请求应该按各自的超时时间失败
+     *
+     * 只检查不会提前超时、先到期的先失败，不检查超时之后多久失败：机器繁忙时事件循环可能被推迟
+     */
+    @Test
+    public void testTimeout() throws Exception {
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            ssc.bind(new InetSocketAddress("localhost", 0));
+            InetSocketAddress address = (InetSocketAddress) ssc.getLocalAddress();
+            try (PipelinedClient client = new PipelinedClient(address, 2, 10000)) {
+                long start = System.nanoTime();
+                // 先提交 slow，确认是按到期时间而不是提交顺序超时的
+                CompletableFuture<String> slow = client.request("slow", 400);
+                CompletableFuture<String> fast = client.request("fast", 100);
+                CompletableFuture<Long> slowAt = slow.handle((r, e) -> System.nanoTime());
+                CompletableFuture<Long> fastAt = fast.handle((r, e) -> System.nanoTime());
+                assertTimedOut(fast);
+                assertTimedOut(slow);
+                long fastMillis = (fastAt.get() - start) / 1000000;
+                long slowMillis = (slowAt.get() - start) / 1000000;
+                Assert.assertTrue("fast timed out after " + fastMillis + " ms", fastMillis >= 100);
+                Assert.assertTrue("slow timed out after " + slowMillis + " ms", slowMillis >= 400);
+                Assert.assertTrue("fast timed out after slow", fastAt.get() <= slowAt.get());
+            }
+            // 关闭之后的请求直接失败
+            PipelinedClient closed = new PipelinedClient(address, 1, 1000);
+            closed.close();
+            try {
+                closed.request("closed").get();
+                Assert.fail("expected failure");
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IOException);
+            }
+        }
+    }
+
+    private static void assertTimedOut(CompletableFuture<String> future) throws InterruptedException {
+        try {
+            future.get();
+            Assert.fail("expected timeout");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package edu.cqupt.nio.network;
+
+import edu.cqupt.nio.byteBuffer.utils.ByteBufferPool;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按连接最近的读取大小自适应的接收缓冲区
+ *
+ * 1. 缓冲区的大小只能是 2 的幂的几个档位（min ~ max），每个档位一个 ByteBufferPool
+ * 2. 每个连接一个 Handle，记录这个连接下一次应该借多大的缓冲区：
+ *    一次读满了当前档位，下一次直接升两档（4 倍）；连续两次读到的数据都放得进小一档的缓冲区，才降一档。
+ *    升得快、降得慢，大流量的连接很快就能一次 read() 读到更多数据，偶尔的小包也不会让它马上缩回去
+ * 3. 连接读完、拆完消息之后没有剩下半包，就把缓冲区整个还回池子，空闲的连接不占用接收缓冲区，
+ *    下一次可读时再按记录的档位借一个
+ * 4. 一条消息比缓冲区大时 grow() 换成大一档的缓冲区，超过 max 之后按 2 倍扩容，不再放回池子
+ *
+ * -Dnio.recv.min=最小的档位，默认 64
+ * -Dnio.recv.initial=新连接第一次借的大小，默认 1024
+ * -Dnio.recv.max=最大的档位，默认 64KB
+ */
+class ReceiveBufferAllocator {
+    /**
+     * 每个档位的池子最多缓存这么多字节的缓冲区
+     */
+    private static final int POOLED_BYTES_PER_CLASS = 1024 * 1024;
+
+    private final int[] sizes;
+    private final ByteBufferPool[] pools;
+    private final int initialIndex;
+
+    ReceiveBufferAllocator(int min, int initial, int max) {
+        if (min <= 0 || min > max || initial < min || initial > max) {
+            throw new IllegalArgumentException("min " + min + ", initial " + initial + ", max " + max);
+        }
+        int first = ceilingPowerOfTwo(min);
+        int classes = Integer.numberOfTrailingZeros(ceilingPowerOfTwo(max)) - Integer.numberOfTrailingZeros(first) + 1;
+        sizes = new int[classes];
+        pools = new ByteBufferPool[classes];
+        for (int i = 0; i < classes; i++) {
+            sizes[i] = first << i;
+            pools[i] = new ByteBufferPool(sizes[i], false, Math.max(1, POOLED_BYTES_PER_CLASS / sizes[i]));
+        }
+        initialIndex = indexOf(initial);
+    }
+
+    static ReceiveBufferAllocator fromSystemProperties() {
+        return new ReceiveBufferAllocator(Integer.getInteger("nio.recv.min", 64),
+                Integer.getInteger("nio.recv.initial", 1024), Integer.getInteger("nio.recv.max", 64 * 1024));
+    }
+
+    Handle newHandle() {
+        return new Handle();
+    }
+
+    /**
+     * 换成能放下更多数据的缓冲区，原来缓冲区中的数据会复制过去，原来的缓冲区还回池子
+     *
+     * @param buffer 写模式
+     */
+    ByteBuffer grow(ByteBuffer buffer) {
+        int index = indexOf(buffer.capacity() + 1);
+        ByteBuffer bigger = buffer.capacity() >= sizes[sizes.length - 1]
+                ? ByteBuffer.allocate(buffer.capacity() * 2) : pools[index].acquire();
+        buffer.flip();
+        bigger.put(buffer);
+        release(buffer);
+        return bigger;
+    }
+
+    void release(ByteBuffer buffer) {
+        int index = indexOf(buffer.capacity());
+        if (sizes[index] == buffer.capacity()) {
+            pools[index].release(buffer);
+        }
+    }
+
+    /**
+     * 能放下 size 个字节的最小档位，超过 max 时返回最大的档位
+     */
+    private int indexOf(int size) {
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i] >= size) {
+                return i;
+            }
+        }
+        return sizes.length - 1;
+    }
+
+    private static int ceilingPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    /**
+     * 一个连接的接收缓冲区大小，只在连接所在的线程中使用
+     */
+    class Handle {
+        private int index = initialIndex;
+        /**
+         * 上一次读到的数据已经放得进小一档的缓冲区
+         */
+        private boolean shrinkNext;
+
+        /**
+         * 按记录的档位借一个写模式的空缓冲区
+         */
+        ByteBuffer allocate() {
+            return pools[index].acquire();
+        }
+
+        /**
+         * 记录一次 read() 读到的字节数
+         */
+        void record(int bytes) {
+            if (bytes >= sizes[index]) {
+                index = Math.min(index + 2, sizes.length - 1);
+                shrinkNext = false;
+            } else if (index > 0 && bytes <= sizes[index - 1]) {
+                if (shrinkNext) {
+                    index--;
+                    shrinkNext = false;
+                } else {
+                    shrinkNext = true;
+                }
+            } else {
+                shrinkNext = false;
+            }
+        }
+    }
+}
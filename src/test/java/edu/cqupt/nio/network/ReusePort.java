@@ -0,0 +1,49 @@
+package edu.cqupt.nio.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+
+/**
+ * SO_REUSEPORT 的兼容处理
+ *
+ * StandardSocketOptions.SO_REUSEPORT 从 JDK 9 开始才有，而且只有部分操作系统支持（Linux、macOS），
+ * 这里通过反射获取，拿不到或者 channel 不支持时返回 false，由调用者退回到单个 channel 的方案。
+ */
+@Slf4j
+final class ReusePort {
+    private static final SocketOption<Boolean> SO_REUSEPORT = lookup();
+
+    private ReusePort() {
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> lookup() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 在 bind 之前调用
+     *
+     * @return 是否成功开启了 SO_REUSEPORT
+     */
+    static boolean enable(NetworkChannel channel) {
+        if (SO_REUSEPORT == null || !channel.supportedOptions().contains(SO_REUSEPORT)) {
+            return false;
+        }
+        try {
+            channel.setOption(SO_REUSEPORT, true);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("SO_REUSEPORT not available...{}", e.toString());
+            return false;
+        }
+    }
+}
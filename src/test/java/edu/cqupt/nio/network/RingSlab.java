@@ -0,0 +1,67 @@
+package edu.cqupt.nio.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 一块大的直接内存，切成相同大小的 InboundRing 分给连接使用，每个worker一个，只在worker线程中使用
+ *
+ * 1. 只调用一次 allocateDirect，避免大量连接各自分配直接内存的开销，所有连接的接收缓冲区在内存中是连续的
+ * 2. 空闲的 InboundRing 用一个 int 栈记录，借还都是 O(1)，不需要加锁；最近还回来的最先借出，更可能还在 CPU 缓存中
+ * 3. slab 用完之后单独 allocateDirect 一个，还回来时交给 GC
+ *
+ * -Dnio.ring.bytes=每个连接的环形缓冲区大小，向上取整到 2 的幂，同时也是一条消息的最大长度；不设置时不使用环形缓冲区
+ * -Dnio.ring.slabBytes=每个worker的 slab 大小，默认 16MB
+ */
+class RingSlab {
+    private final int ringBytes;
+    private final InboundRing[] rings;
+    private final int[] free;
+    private int freeCount;
+
+    RingSlab(int ringBytes, int slabBytes) {
+        if (ringBytes <= 0 || slabBytes < ringBytes) {
+            throw new IllegalArgumentException("ringBytes " + ringBytes + ", slabBytes " + slabBytes);
+        }
+        this.ringBytes = ringBytes <= 1 ? 1 : Integer.highestOneBit(ringBytes - 1) << 1;
+        int count = slabBytes / this.ringBytes;
+        ByteBuffer slab = ByteBuffer.allocateDirect(count * this.ringBytes);
+        rings = new InboundRing[count];
+        free = new int[count];
+        for (int i = 0; i < count; i++) {
+            slab.limit((i + 1) * this.ringBytes);
+            slab.position(i * this.ringBytes);
+            rings[i] = new InboundRing(slab.slice(), i);
+            // 倒着入栈，先借出地址低的
+            free[count - 1 - i] = i;
+        }
+        freeCount = count;
+    }
+
+    /**
+     * 每次调用都创建一个新的 RingSlab，每个worker一个
+     *
+     * @return 没有设置 -Dnio.ring.bytes 时返回 null
+     */
+    static RingSlab fromSystemProperties() {
+        int ringBytes = Integer.getInteger("nio.ring.bytes", 0);
+        if (ringBytes <= 0) {
+            return null;
+        }
+        return new RingSlab(ringBytes, Math.max(ringBytes, Integer.getInteger("nio.ring.slabBytes", 16 * 1024 * 1024)));
+    }
+
+    InboundRing allocate() {
+        if (freeCount == 0) {
+            return new InboundRing(ByteBuffer.allocateDirect(ringBytes), -1);
+        }
+        InboundRing ring = rings[free[--freeCount]];
+        ring.reset();
+        return ring;
+    }
+
+    void release(InboundRing ring) {
+        if (ring.chunk >= 0) {
+            free[freeCount++] = ring.chunk;
+        }
+    }
+}
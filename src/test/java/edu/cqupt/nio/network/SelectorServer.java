@@ -1,5 +1,6 @@
 package edu.cqupt.nio.network;
 
+import edu.cqupt.nio.fileChannel.MessageLog;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
@@ -11,8 +12,10 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import static edu.cqupt.nio.byteBuffer.utils.ByteBufferUtil.debugAll;
 
@@ -21,12 +24,34 @@ import static edu.cqupt.nio.byteBuffer.utils.ByteBufferUtil.debugAll;
  * @create 2021/7/14 - 18:23
  * <p>
  * 单线程配合Selector多路复用 非阻塞式服务器
+ *
+ * 配置 -Dnio.log.dir 后，收到的每条消息都会追加到 MessageLog 中，持久化之后才向客户端回复 "ok 偏移量\n"
+ * 拆分消息超过阈值时会产生 JFR 事件（见 NetworkEvents），只在开启了 JFR 录制时记录
  */
 @Slf4j
 public class SelectorServer {
+    /**
+     * 为 null 时不持久化
+     */
+    private static MessageLog messageLog;
+    /**
+     * 持久化确认由 log-flusher 线程产生，交给 selector 线程发送
+     */
+    private static final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private static Selector selector;
+    /**
+     * 所有连接的接收缓冲区，按每个连接最近读到的字节数调整大小
+     */
+    private static final ReceiveBufferAllocator receiveBuffers = ReceiveBufferAllocator.fromSystemProperties();
+    /**
+     * 连接 id，只用于 JFR 事件中区分连接
+     */
+    private static long sequence;
+
     public static void main(String[] args) throws IOException {
+        messageLog = MessageLog.openFromSystemProperties();
         // 创建selector, 管理多个channel
-        Selector selector = Selector.open();
+        selector = Selector.open();
         ServerSocketChannel ssc = ServerSocketChannel.open();
         ssc.bind(new InetSocketAddress(8080));
         ssc.configureBlocking(false);
@@ -44,6 +69,10 @@ public class SelectorServer {
                 select 在事件发生但是未处理时，不会阻塞, 事件发生后要么处理，要么取消，不能置之不理
              */
             selector.select();
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
             /*
                 处理事件 selectedKeys 内部包含了所有发生的事件
                 public abstract Set<SelectionKey> selectedKeys(); --> selectedKeys()返回一个Set集合
@@ -64,48 +93,46 @@ public class SelectorServer {
                     sc.configureBlocking(false);
 
                     /*
-                        防止数据内容长度会超过ByteBuffer的容量，将ByteBuffer以附件attachment的形式注册在sckey上
+                        防止数据内容长度会超过ByteBuffer的容量，将ByteBuffer（放在Connection中）以附件attachment的形式注册在sckey上
                         因为sckey是唯一的，就算数据长度超出ByteBuffer限制，造成了两次读取，
                         也可以进行扩容，并从附件中得到同一个ByteBuffer
                      */
-                    ByteBuffer byteBuffer = ByteBuffer.allocate(16);
-                    SelectionKey scKey = sc.register(selector, 0, byteBuffer);
+                    SelectionKey scKey = sc.register(selector, 0, null);
+                    Connection connection = new Connection(sc, scKey, receiveBuffers);
+                    connection.id = ++sequence;
+                    scKey.attach(connection);
                     scKey.interestOps(SelectionKey.OP_READ);
                     log.debug("sc:{}", sc);
                     log.debug("scKey:{}", scKey);
                 } else if (key.isReadable()) {
+                    // 从key上获取到关联的附件
+                    Connection connection = (Connection) key.attachment();
                     try {
                         // 如果是read事件
-                        // 拿到触发事件的channel
-                        SocketChannel channel = (SocketChannel) key.channel();
-//                        ByteBuffer byteBuffer = ByteBuffer.allocate(16);
-                        // 从key上获取到关联的附件
-                        ByteBuffer byteBuffer = (ByteBuffer) key.attachment();
-                        int read = channel.read(byteBuffer);
+                        int read = connection.read();
                         // 如果是正常断开，read的返回值会是-1
                         if (read == - 1) {
                             // 正常断开依然会产生一个Read事件，因此需要把这个事件取消掉，不然
-                            key.cancel();
+                            connection.close();
                         } else {
 //                            byteBuffer.flip();
 //                            System.out.println(Charset.defaultCharset().decode(byteBuffer));
-                            split(byteBuffer);
-                            // 在进行了split()方法，其中进行了compact()以后，如果position == limit，那么说明ByteBuffer容量不够
-                            if (byteBuffer.position() == byteBuffer.limit()) {
-                                // 进行2倍扩容
-                                ByteBuffer newBuffer = ByteBuffer.allocate(byteBuffer.capacity() * 2);
-                                byteBuffer.flip();
-                                newBuffer.put(byteBuffer);
-                                // key重新关联新的newBuffer作为附件
-                                key.attach(newBuffer);
-                            }
+                            split(connection);
+                            // 在进行了split()方法，其中进行了compact()以后，如果position == limit，那么说明ByteBuffer容量不够，换成大一档的
+                            connection.ensureCapacity();
                         }
                     } catch (IOException e) {
                         // 无论客户端是正常断开连接还是异常强制关闭连接，都会产生一个Read类型的事件
                         e.printStackTrace();
                         // 这里如果不处理关闭客户端产生的事件，循环就会继续而不是被阻塞，就会一直抛异常
-                        key.cancel();
+                        connection.close();
+                    } finally {
+                        // 没有半包时归还接收缓冲区，空闲的连接不占用接收缓冲区
+                        connection.releaseIdleBuffer();
                     }
+                } else if (key.isWritable()) {
+                    // 确认消息一次没有写完
+                    ((Connection) key.attachment()).flush();
                 }
             }
         }
@@ -114,7 +141,11 @@ public class SelectorServer {
     /**
      * 分割数据
      */
-    private static void split(ByteBuffer buffer) {
+    private static void split(Connection connection) {
+        Object event = NetworkEvents.beginDecode();
+        ByteBuffer buffer = connection.inbound;
+        int bytes = buffer.position();
+        int frames = 0;
         // 转换为读模式
         buffer.flip();
         for (int i = 0; i < buffer.limit(); i++) {
@@ -124,10 +155,29 @@ public class SelectorServer {
                 for (int j = 0; j < length; j++) {
                     result.put(buffer.get());
                 }
+                // 跳过 \n
+                buffer.get();
                 debugAll(result);
+                persist(connection, result);
+                frames++;
             }
         }
         // 压缩已经读过的结果，保留分包的内容
         buffer.compact();
+        NetworkEvents.endDecode(event, connection.id, bytes, frames);
+    }
+
+    /**
+     * 持久化一条消息，持久化完成后回复客户端
+     */
+    private static void persist(Connection connection, ByteBuffer frame) {
+        if (messageLog == null) {
+            return;
+        }
+        frame.flip();
+        messageLog.append(frame).whenComplete((offset, e) -> {
+            tasks.add(() -> connection.send(StandardCharsets.US_ASCII.encode(e == null ? "ok " + offset + "\n" : "error\n")));
+            selector.wakeup();
+        });
     }
 }
@@ -0,0 +1,936 @@
+package edu.cqupt.nio.network;
+
+import edu.cqupt.nio.byteBuffer.utils.ByteBufferPool;
+import edu.cqupt.nio.byteBuffer.utils.RefCountedBuffer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSocket;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * 服务器组件的单元测试，不启动服务器：
+ * 连接通过本机的 ServerSocketChannel 建立，服务端的一侧注册到测试自己的 Selector 上，直接调用组件的方法
+ */
+public class TestNetwork {
+    private ServerSocketChannel server;
+    private Selector selector;
+    private final ReceiveBufferAllocator receiveBuffers = new ReceiveBufferAllocator(64, 1024, 64 * 1024);
+    /**
+     * 连接的客户端一侧，测试结束时关闭
+     */
+    private final List<SocketChannel> peers = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("localhost", 0));
+        selector = Selector.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SocketChannel peer : peers) {
+            peer.close();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        server.close();
+    }
+
+    /**
+     * 建立一个连接，返回服务端一侧的 Connection
+     *
+     * @param slow 为 true 时把两侧的缓冲区调小，客户端又不读取，服务端很快就写不进去
+     */
+    private Connection connect(boolean slow) throws IOException {
+        SocketChannel peer = SocketChannel.open();
+        if (slow) {
+            peer.socket().setReceiveBufferSize(4096);
+        }
+        peer.connect(server.getLocalAddress());
+        peers.add(peer);
+        SocketChannel channel = server.accept();
+        if (slow) {
+            channel.socket().setSendBufferSize(4096);
+        }
+        channel.configureBlocking(false);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        Connection connection = new Connection(channel, key, receiveBuffers);
+        key.attach(connection);
+        return connection;
+    }
+
+    private static RefCountedBuffer shared(ByteBufferPool pool, String content) {
+        ByteBuffer buffer = pool.acquire();
+        buffer.put(content.getBytes(StandardCharsets.US_ASCII)).flip();
+        return new RefCountedBuffer(buffer, pool);
+    }
+
+    /**
+     * 广播：每个连接 retain() 一次，写完就 release()，发布者最后释放时缓冲区回到池子，之后不能再释放
+     */
+    @Test
+    public void testBroadcastReleasesOnce() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            connect(false);
+        }
+        ByteBufferPool pool = new ByteBufferPool(64, true, 4);
+        RefCountedBuffer shared = shared(pool, "hello\n");
+        Broadcaster broadcaster = new Broadcaster(new MultiThreadSelectorServer.Worker[0], 64, 1024,
+                Broadcaster.SlowSubscriberPolicy.DROP);
+        broadcaster.deliver(selector.keys(), shared);
+        // 三个连接都一次写完了，只剩下发布者的引用
+        assertEquals(1, shared.refCnt());
+        assertEquals(0, pool.available());
+        assertEquals(true, shared.release());
+        assertEquals(1, pool.available());
+        try {
+            shared.release();
+            fail("released twice");
+        } catch (IllegalStateException expected) {
+        }
+
+        for (SocketChannel peer : peers) {
+            ByteBuffer received = ByteBuffer.allocate(16);
+            while (received.position() < 6) {
+                peer.read(received);
+            }
+            received.flip();
+            assertEquals("hello\n", StandardCharsets.US_ASCII.decode(received).toString());
+        }
+    }
+
+    /**
+     * 共享内容只写出了一部分时连接关闭，关闭时释放这个连接的引用
+     */
+    @Test
+    public void testBroadcastReleasedOnCloseWhilePartiallyWritten() throws IOException {
+        Connection slow = connect(true);
+        int size = 1024 * 1024;
+        ByteBufferPool pool = new ByteBufferPool(size, true, 4);
+        ByteBuffer buffer = pool.acquire();
+        buffer.position(size).flip();
+        RefCountedBuffer shared = new RefCountedBuffer(buffer, pool);
+        Broadcaster broadcaster = new Broadcaster(new MultiThreadSelectorServer.Worker[0], size, Long.MAX_VALUE,
+                Broadcaster.SlowSubscriberPolicy.DROP);
+        broadcaster.deliver(selector.keys(), shared);
+        assertEquals(true, slow.pendingBytes() > 0 && slow.pendingBytes() < size);
+        assertEquals(2, shared.refCnt());
+
+        slow.close();
+        assertEquals(1, shared.refCnt());
+        assertEquals(true, shared.release());
+        assertEquals(1, pool.available());
+    }
+
+    /**
+     * 积压超过 maxPendingBytes 的连接：DROP 时这个连接收不到，DISCONNECT 时断开它，其他连接照常收到
+     */
+    @Test
+    public void testSlowSubscriberPolicies() throws IOException {
+        Connection fast = connect(false);
+        Connection slow = connect(true);
+        slow.send(ByteBuffer.allocate(1024 * 1024));
+        long backlog = slow.pendingBytes();
+        assertEquals(true, backlog > 1024);
+
+        ByteBufferPool pool = new ByteBufferPool(64, true, 4);
+        RefCountedBuffer shared = shared(pool, "hello\n");
+        Broadcaster drop = new Broadcaster(new MultiThreadSelectorServer.Worker[0], 64, 1024,
+                Broadcaster.SlowSubscriberPolicy.DROP);
+        drop.deliver(selector.keys(), shared);
+        assertEquals(1, drop.dropped());
+        assertEquals(0, drop.disconnected());
+        assertEquals(backlog, slow.pendingBytes());
+        assertEquals(true, slow.key.isValid());
+        assertEquals(0, fast.pendingBytes());
+
+        Broadcaster disconnect = new Broadcaster(new MultiThreadSelectorServer.Worker[0], 64, 1024,
+                Broadcaster.SlowSubscriberPolicy.DISCONNECT);
+        disconnect.deliver(selector.keys(), shared);
+        assertEquals(0, disconnect.dropped());
+        assertEquals(1, disconnect.disconnected());
+        assertEquals(false, slow.key.isValid());
+        assertEquals(true, fast.key.isValid());
+
+        // 两次广播都没有在连接中留下引用
+        assertEquals(1, shared.refCnt());
+        assertEquals(true, shared.release());
+        assertEquals(1, pool.available());
+    }
+
+    /**
+     * DatagramServer：一次连续发出一批数据报，worker批量接收、批量回复，回复的内容和数量与发送的一致，统计也一致
+     */
+    @Test
+    public void testDatagramBatchedEcho() throws Exception {
+        DatagramServer.DatagramWorker[] workers = DatagramServer.start(0, 2, 2048);
+        try (DatagramChannel client = DatagramChannel.open()) {
+            int port = ((InetSocketAddress) workers[0].localAddress()).getPort();
+            client.connect(new InetSocketAddress("localhost", port));
+            int count = 200;
+            for (int i = 0; i < count; i++) {
+                client.write(StandardCharsets.US_ASCII.encode("datagram-" + i));
+            }
+            client.configureBlocking(false);
+            Set<String> replies = new HashSet<>();
+            ByteBuffer buffer = ByteBuffer.allocate(2048);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (replies.size() < count && System.currentTimeMillis() < deadline) {
+                buffer.clear();
+                if (client.read(buffer) > 0) {
+                    buffer.flip();
+                    replies.add(StandardCharsets.US_ASCII.decode(buffer).toString());
+                }
+            }
+            assertEquals(count, replies.size());
+            assertEquals(true, replies.contains("datagram-0") && replies.contains("datagram-" + (count - 1)));
+            // 回复发出之后才计数，稍等worker更新统计
+            while (!DatagramServer.report(workers).contains("sent " + count) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            String report = DatagramServer.report(workers);
+            assertTrue(report, report.startsWith("udp received " + count + " ("));
+            assertTrue(report, report.endsWith("sent " + count + ", dropped 0"));
+        } finally {
+            for (DatagramServer.DatagramWorker worker : workers) {
+                worker.close();
+            }
+        }
+    }
+
+    /**
+     * 解压：类型未知、长度为负数或者超过 maxBlockBytes 的块直接报错，不按对方声明的长度分配缓冲区
+     */
+    @Test
+    public void testCompressionRejectsMalformedBlocks() {
+        CompressionCodec codec = new CompressionCodec(CompressionCodec.Mode.FRAME, 256, 1, 0, 4096);
+        byte[][] headers = {
+                {CompressionCodec.RAW, -1, -1, -1, -1},
+                {CompressionCodec.DEFLATE, -1, -1, -1, -1},
+                {CompressionCodec.RAW, 0, 0, 0x10, 0x01},
+                {CompressionCodec.DEFLATE, 0x7f, -1, -1, -1},
+                {7, 0, 0, 0, 1},
+        };
+        for (byte[] header : headers) {
+            CompressionCodec.Decoder decoder = codec.newDecoder();
+            decoder.wire().put(header).put((byte) 'x');
+            try {
+                decoder.decode(ByteBuffer.allocate(64));
+                fail("accepted block header " + Arrays.toString(header));
+            } catch (IOException expected) {
+            }
+            decoder.close();
+        }
+    }
+
+    /**
+     * 压缩：超过 maxBlockBytes 的消息切成多个块，无论能不能压缩，解压之后都和原始数据一致
+     */
+    @Test
+    public void testCompressionSplitsLargeMessages() throws IOException {
+        byte[] text = new byte[20000];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ("greenhand\n".charAt(i % 10));
+        }
+        byte[] random = new byte[20000];
+        new Random(42).nextBytes(random);
+        for (byte[] message : new byte[][]{text, random}) {
+            CompressionCodec codec = new CompressionCodec(CompressionCodec.Mode.FRAME, 256, 1, 0, 4096);
+            ByteBuffer blocks = codec.newEncoder().encode(ByteBuffer.wrap(message));
+            CompressionCodec.Decoder decoder = codec.newDecoder();
+            // 多留一点空间，解压到最后一个块的结尾时 decode() 才能发现这个块已经结束
+            ByteBuffer decoded = ByteBuffer.allocate(message.length + 1);
+            while (blocks.hasRemaining() || decoder.hasBufferedInput()) {
+                ByteBuffer wire = decoder.wire();
+                int n = Math.min(wire.remaining(), blocks.remaining());
+                ByteBuffer slice = blocks.duplicate();
+                slice.limit(slice.position() + n);
+                wire.put(slice);
+                blocks.position(blocks.position() + n);
+                decoder.decode(decoded);
+            }
+            assertEquals(message.length, decoded.position());
+            assertArrayEquals(message, Arrays.copyOf(decoded.array(), message.length));
+        }
+    }
+
+    /**
+     * 解压到 InboundRing 的空闲空间（直接内存，并且会绕回环头），拆出来的消息和压缩之前一致
+     */
+    @Test
+    public void testCompressionDecodesIntoRing() throws IOException {
+        CompressionCodec codec = new CompressionCodec(CompressionCodec.Mode.BATCH, 0, 1, 4096, 4096);
+        CompressionCodec.Encoder encoder = codec.newEncoder();
+        List<String> messages = new ArrayList<>();
+        Random random = new Random(44);
+        ByteBuffer blocks = ByteBuffer.allocate(1 << 20);
+        for (int i = 0; i < 2000; i++) {
+            String message = "message-" + i + "-" + Long.toString(random.nextLong(), 36);
+            messages.add(message);
+            ByteBuffer encoded = encoder.encode(StandardCharsets.US_ASCII.encode(message + "\n"));
+            if (encoded != null) {
+                blocks.put(encoded);
+            }
+        }
+        ByteBuffer last = encoder.flush();
+        if (last != null) {
+            blocks.put(last);
+        }
+        encoder.close();
+        blocks.flip();
+
+        InboundRing ring = new InboundRing(ByteBuffer.allocateDirect(256), -1);
+        CompressionCodec.Decoder decoder = codec.newDecoder();
+        List<String> received = new ArrayList<>();
+        while (blocks.hasRemaining() || decoder.hasBufferedInput()) {
+            ByteBuffer wire = decoder.wire();
+            int n = Math.min(Math.min(wire.remaining(), blocks.remaining()), 100);
+            ByteBuffer slice = blocks.duplicate();
+            slice.limit(slice.position() + n);
+            wire.put(slice);
+            blocks.position(blocks.position() + n);
+            do {
+                ring.written(decoder.decode(ring.writableRegion()));
+                ByteBuffer frame;
+                while ((frame = ring.nextFrame()) != null) {
+                    received.add(StandardCharsets.US_ASCII.decode(frame).toString());
+                }
+            } while (decoder.hasBufferedInput());
+        }
+        decoder.close();
+        assertEquals(messages, received);
+        assertTrue("ring not drained", ring.isEmpty());
+    }
+
+    /**
+     * InboundRing：跨过环尾的消息、跨过环尾才补全的半包，都能完整地拆出来
+     */
+    @Test
+    public void testInboundRingWrap() throws IOException {
+        Pipe pipe = Pipe.open();
+        try {
+            InboundRing ring = new InboundRing(ByteBuffer.allocateDirect(16), -1);
+            // 读走 11 个字节，之后的数据从下标 11 开始，写到环尾时绕回开头
+            assertEquals(11, feed(pipe, ring, "abcdefghij\n"));
+            assertEquals("abcdefghij", nextFrame(ring));
+            assertNull(ring.nextFrame());
+
+            // 一次分散读入两段：5 个字节写到环尾，6 个字节写到开头
+            assertEquals(11, feed(pipe, ring, "0123456789\n"));
+            assertEquals("0123456789", nextFrame(ring));
+            assertTrue("ring not drained", ring.isEmpty());
+
+            // 半包在环尾之前，剩下的部分绕回开头之后才到；上一次找过的字节不会重复找
+            assertEquals(4, feed(pipe, ring, "wxyz"));
+            assertNull(ring.nextFrame());
+            assertEquals(6, feed(pipe, ring, "01234\n"));
+            assertEquals("wxyz01234", nextFrame(ring));
+
+            // 没有跨过环尾的消息是缓冲区的视图，不需要复制
+            assertEquals(3, feed(pipe, ring, "ok\n"));
+            ByteBuffer frame = ring.nextFrame();
+            assertTrue("frame should be a view of the ring", frame.isDirect());
+            assertEquals("ok", StandardCharsets.US_ASCII.decode(frame).toString());
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    /**
+     * InboundRing：一直没有 \n 时缓冲区会被填满，isFull() 为 true，不再读取
+     */
+    @Test
+    public void testInboundRingFull() throws IOException {
+        Pipe pipe = Pipe.open();
+        try {
+            InboundRing ring = new InboundRing(ByteBuffer.allocateDirect(16), -1);
+            assertEquals(6, feed(pipe, ring, "start\n"));
+            assertEquals("start", nextFrame(ring));
+            assertEquals(16, feed(pipe, ring, "0123456789abcdefXYZ"));
+            assertNull(ring.nextFrame());
+            assertTrue("ring should be full", ring.isFull());
+            assertEquals(0, ring.readFrom(pipe.source()));
+            assertEquals(0, ring.writableRegion().remaining());
+            assertEquals(16, ring.readable());
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    /**
+     * 写入 pipe，再通过 readFrom() 读入 ring，pipe 中多出来的数据留在 pipe 中
+     */
+    private static int feed(Pipe pipe, InboundRing ring, String data) throws IOException {
+        ByteBuffer bytes = StandardCharsets.US_ASCII.encode(data);
+        while (bytes.hasRemaining()) {
+            pipe.sink().write(bytes);
+        }
+        return ring.readFrom(pipe.source());
+    }
+
+    private static String nextFrame(InboundRing ring) {
+        ByteBuffer frame = ring.nextFrame();
+        assertTrue("no complete frame", frame != null);
+        return StandardCharsets.US_ASCII.decode(frame).toString();
+    }
+
+    /**
+     * RingSlab：大小向上取整到 2 的幂；slab 用完之后单独分配（chunk 为 -1），还回来时不进空闲栈；
+     * 重新借出的 ring 是清空的
+     */
+    @Test
+    public void testRingSlabExhaustion() {
+        RingSlab slab = new RingSlab(10, 32);
+        InboundRing first = slab.allocate();
+        InboundRing second = slab.allocate();
+        InboundRing extra = slab.allocate();
+        assertEquals(16, first.capacity());
+        assertEquals(0, first.chunk);
+        assertEquals(1, second.chunk);
+        assertEquals(-1, extra.chunk);
+        assertEquals(16, extra.capacity());
+
+        first.writableRegion().put((byte) 'x');
+        first.written(1);
+        slab.release(extra);
+        slab.release(first);
+        slab.release(second);
+        // 最近还回来的最先借出
+        assertSame(second, slab.allocate());
+        InboundRing reused = slab.allocate();
+        assertSame(first, reused);
+        assertTrue("reused ring should be empty", reused.isEmpty());
+        assertEquals(-1, slab.allocate().chunk);
+    }
+
+    /**
+     * ConnectionTable：同一个槽位的 id 连成一条探测链，删除链头、链中间的元素之后，后面的元素依然能找到
+     */
+    @Test
+    public void testConnectionTableCollisions() {
+        ConnectionTable table = new ConnectionTable(16);
+        // 找出 4 个落在同一个槽位的 id，以及 1 个落在下一个槽位、会被挤到链尾的 id
+        int home = table.slot(ConnectionTable.id(0, 1));
+        List<Long> chain = new ArrayList<>();
+        long neighbour = 0;
+        for (long sequence = 1; chain.size() < 4 || neighbour == 0; sequence++) {
+            long id = ConnectionTable.id(1, sequence);
+            int slot = table.slot(id);
+            if (slot == home && chain.size() < 4) {
+                chain.add(id);
+            } else if (slot == ((home + 1) & 15) && neighbour == 0) {
+                neighbour = id;
+            }
+        }
+        Map<Long, Connection> expected = new HashMap<>();
+        for (long id : chain) {
+            expected.put(id, newConnection());
+        }
+        expected.put(neighbour, newConnection());
+        for (Map.Entry<Long, Connection> entry : expected.entrySet()) {
+            assertNull(table.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(5, table.size());
+
+        // 链头、链中间、链尾依次删除，每次删除之后剩下的都还能找到
+        long[] order = {chain.get(0), chain.get(2), neighbour, chain.get(3)};
+        for (long id : order) {
+            assertSame(expected.remove(id), table.remove(id));
+            assertNull(table.get(id));
+            assertNull(table.remove(id));
+            for (Map.Entry<Long, Connection> entry : expected.entrySet()) {
+                assertSame(entry.getValue(), table.get(entry.getKey()));
+            }
+        }
+        assertEquals(1, table.size());
+    }
+
+    /**
+     * ConnectionTable：随机增删，和 HashMap 的结果对比，从最小的容量开始，经过多次扩容
+     */
+    @Test
+    public void testConnectionTableAgainstHashMap() {
+        ConnectionTable table = new ConnectionTable(1);
+        Map<Long, Connection> expected = new HashMap<>();
+        Random random = new Random(39);
+        for (int i = 0; i < 100000; i++) {
+            long id = ConnectionTable.id(random.nextInt(4), 1 + random.nextInt(2000));
+            if (random.nextInt(3) == 0) {
+                assertSame(expected.remove(id), table.remove(id));
+            } else {
+                Connection connection = newConnection();
+                assertSame(expected.put(id, connection), table.put(id, connection));
+            }
+            assertEquals(expected.size(), table.size());
+        }
+        for (int worker = 0; worker < 4; worker++) {
+            for (long sequence = 1; sequence <= 2000; sequence++) {
+                long id = ConnectionTable.id(worker, sequence);
+                assertSame(expected.get(id), table.get(id));
+            }
+        }
+        assertEquals(3, ConnectionTable.workerOf(ConnectionTable.id(3, 1L << 40)));
+    }
+
+    /**
+     * TokenBucket：按时间差补充令牌，不足一个令牌的时间留到下一次；最多攒到桶的容量；nanosUntil 向上取整
+     */
+    @Test
+    public void testTokenBucket() {
+        TokenBucket bucket = new TokenBucket(3, 100, 0);
+        assertEquals(100, bucket.available(0));
+        bucket.consume(100);
+        assertEquals(0, bucket.available(0));
+        // 1/3 秒不到一个令牌，向上取整之后正好够一个
+        assertEquals(333_333_334, bucket.nanosUntil(1, 0));
+        assertEquals(0, bucket.available(333_333_333));
+        assertEquals(1, bucket.available(333_333_334));
+        // 1.5 个令牌只补充 1 个，剩下的半个在下一次补充时还在
+        bucket.consume(1);
+        assertEquals(1, bucket.available(833_333_334));
+        assertEquals(2, bucket.available(1_000_000_002));
+        // 请求超过桶的容量时按容量计算
+        assertEquals(bucket.nanosUntil(100, 1_000_000_002), bucket.nanosUntil(1000, 1_000_000_002));
+        // 空闲很久也只攒到桶的容量
+        assertEquals(100, bucket.available(3600_000_000_000L));
+        assertEquals(0, bucket.nanosUntil(100, 3600_000_000_000L));
+        // 时间倒退（多个线程读到的 nanoTime）时不补充
+        bucket.consume(60);
+        assertEquals(40, bucket.available(0));
+    }
+
+    /**
+     * BandwidthShaper：select() 的超时时间向上取整到毫秒，连接按令牌攒够的先后顺序恢复
+     */
+    @Test
+    public void testBandwidthShaper() {
+        BandwidthShaper shaper = new BandwidthShaper(4096, 0, 8192, 0);
+        assertEquals(0, shaper.timeoutMillis(0));
+        TokenBucket slow = shaper.newConnectionBucket(0);
+        TokenBucket fast = new TokenBucket(8192, 8192, 0);
+        assertEquals(8192, shaper.allowance(slow, 0));
+        shaper.consume(slow, 8192);
+        fast.consume(8192);
+        assertEquals(0, shaper.allowance(slow, 0));
+
+        // 至少攒够 4096 个令牌才恢复：slow 要 1 秒，fast 要 0.5 秒；先登记 slow
+        List<String> resumed = new ArrayList<>();
+        shaper.throttle(() -> resumed.add("slow"), slow, 0);
+        shaper.throttle(() -> resumed.add("fast"), fast, 0);
+        assertEquals(500, shaper.timeoutMillis(0));
+        assertEquals(500, shaper.timeoutMillis(1));
+        assertEquals(1, shaper.timeoutMillis(499_999_999));
+        shaper.resumeDue(499_999_999);
+        assertEquals(0, resumed.size());
+        shaper.resumeDue(500_000_000);
+        assertEquals(Arrays.asList("fast"), resumed);
+        assertEquals(500, shaper.timeoutMillis(500_000_000));
+        // 已经过了到期时间还没有恢复时不会返回 0（0 表示一直阻塞）
+        assertEquals(1, shaper.timeoutMillis(2_000_000_000));
+        shaper.resumeDue(2_000_000_000);
+        assertEquals(Arrays.asList("fast", "slow"), resumed);
+        assertEquals(0, shaper.timeoutMillis(2_000_000_000));
+
+        // 同时限制worker时取两个桶中较少的令牌，等待时间取较长的
+        BandwidthShaper both = new BandwidthShaper(8192, 4096, 8192, 0);
+        TokenBucket connection = both.newConnectionBucket(0);
+        both.consume(connection, 8192);
+        // 0.5 秒后连接的桶中有 4096 个令牌，worker的桶中只有 2048 个
+        assertEquals(2048, both.allowance(connection, 500_000_000));
+        assertEquals(0, connection.nanosUntil(4096, 500_000_000));
+        both.throttle(() -> resumed.add("both"), connection, 500_000_000);
+        assertEquals(500, both.timeoutMillis(500_000_000));
+        assertNull(new BandwidthShaper(0, 4096, 8192, 0).newConnectionBucket(0));
+    }
+
+    /**
+     * ReceiveBufferAllocator.Handle：读满升两档，连续两次放得进小一档才降一档，中间读到一次不小的数据就重新计数
+     */
+    @Test
+    public void testReceiveBufferSizing() {
+        ReceiveBufferAllocator.Handle handle = receiveBuffers.newHandle();
+        assertEquals(1024, nextSize(handle));
+        handle.record(1024);
+        assertEquals(4096, nextSize(handle));
+        // 一次放得进小一档的读取不降
+        handle.record(100);
+        assertEquals(4096, nextSize(handle));
+        handle.record(100);
+        assertEquals(2048, nextSize(handle));
+        // 小、不小、小：不连续，不降
+        handle.record(100);
+        handle.record(1500);
+        handle.record(100);
+        assertEquals(2048, nextSize(handle));
+        handle.record(100);
+        assertEquals(1024, nextSize(handle));
+        // 正好等于小一档也算放得进
+        handle.record(512);
+        handle.record(512);
+        assertEquals(512, nextSize(handle));
+        // 升档时清除降档的计数
+        handle.record(0);
+        handle.record(512);
+        handle.record(0);
+        assertEquals(2048, nextSize(handle));
+        // 最大、最小的档位都不会越界
+        for (int i = 0; i < 10; i++) {
+            handle.record(1 << 20);
+        }
+        assertEquals(64 * 1024, nextSize(handle));
+        for (int i = 0; i < 40; i++) {
+            handle.record(0);
+        }
+        assertEquals(64, nextSize(handle));
+    }
+
+    private static int nextSize(ReceiveBufferAllocator.Handle handle) {
+        ByteBuffer buffer = handle.allocate();
+        assertEquals(0, buffer.position());
+        return buffer.capacity();
+    }
+
+    /**
+     * ReceiveBufferAllocator.grow()：档位以内换成池子中大一档的缓冲区，旧的还回池子；
+     * 超过最大的档位之后按 2 倍扩容，这样的缓冲区还回来时直接丢弃，不会混进最大一档的池子
+     */
+    @Test
+    public void testReceiveBufferGrow() {
+        ReceiveBufferAllocator allocator = new ReceiveBufferAllocator(1024, 1024, 4096);
+        ReceiveBufferAllocator.Handle handle = allocator.newHandle();
+        ByteBuffer small = handle.allocate();
+        byte[] data = new byte[small.capacity()];
+        new Random(43).nextBytes(data);
+        small.put(data);
+        ByteBuffer grown = allocator.grow(small);
+        assertEquals(2048, grown.capacity());
+        assertEquals(data.length, grown.position());
+        assertSame(small, handle.allocate());
+
+        ByteBuffer bigger = allocator.grow(allocator.grow(grown));
+        assertEquals(8192, bigger.capacity());
+        ByteBuffer biggest = allocator.grow(bigger);
+        assertEquals(16384, biggest.capacity());
+        assertEquals(data.length, biggest.position());
+        biggest.flip();
+        byte[] copied = new byte[data.length];
+        biggest.get(copied);
+        assertArrayEquals(data, copied);
+
+        // 8192 扩容时被丢弃，16384 还回来也被丢弃，最大一档的池子中只有 grow(grown) 换下来的那个 4096
+        allocator.release(biggest);
+        handle.record(1 << 20);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(4096, handle.allocate().capacity());
+        }
+    }
+
+    /**
+     * Mailbox：多个生产者同时投递，一个任务都不丢，同一个生产者投递的任务按投递的顺序执行
+     */
+    @Test
+    public void testMailboxMultipleProducers() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 100000;
+        Mailbox mailbox = new Mailbox(64);
+        // 只在消费者（当前线程）中访问
+        int[] next = new int[producers];
+        List<String> errors = new ArrayList<>();
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    int sequence = i;
+                    mailbox.offer(() -> {
+                        if (next[producer] != sequence && errors.size() < 10) {
+                            errors.add("producer " + producer + ": expected " + next[producer] + ", ran " + sequence);
+                        }
+                        next[producer] = sequence + 1;
+                    });
+                }
+            }, "producer-" + p);
+            threads[p].start();
+        }
+        long executed = 0;
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (executed < (long) producers * perProducer && System.nanoTime() - deadline < 0) {
+            int n = mailbox.drain();
+            executed += n;
+            if (n == 0) {
+                Thread.yield();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals((long) producers * perProducer, executed);
+        assertEquals(0, mailbox.drain());
+        assertTrue("mailbox should be empty", mailbox.isEmpty());
+        for (int p = 0; p < producers; p++) {
+            assertEquals(perProducer, next[p]);
+        }
+    }
+
+    /**
+     * Mailbox：一次 drain() 最多执行 maxBatch 个任务，剩下的按顺序留到下一次；任务中投递的任务排在后面
+     */
+    @Test
+    public void testMailboxBatchBound() {
+        Mailbox mailbox = new Mailbox(3);
+        List<Integer> ran = new ArrayList<>();
+        for (int i = 0; i < 7; i++) {
+            int task = i;
+            mailbox.offer(() -> {
+                ran.add(task);
+                if (task == 0) {
+                    mailbox.offer(() -> ran.add(100));
+                }
+            });
+        }
+        assertEquals(3, mailbox.drain());
+        assertEquals(Arrays.asList(0, 1, 2), ran);
+        assertTrue("tasks left for the next drain", !mailbox.isEmpty());
+        assertEquals(3, mailbox.drain());
+        assertEquals(2, mailbox.drain());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 100), ran);
+        assertEquals(0, mailbox.drain());
+        assertTrue("mailbox should be empty", mailbox.isEmpty());
+        try {
+            new Mailbox(0);
+            fail("accepted maxBatch 0");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * Mailbox：两次 drain() 之间只有第一个 claimWakeup() 返回 true，drain() 开始时清除标记
+     */
+    @Test
+    public void testMailboxWakeupCoalescing() {
+        Mailbox mailbox = new Mailbox(16);
+        mailbox.offer(() -> {
+        });
+        assertTrue("first producer should wake the consumer", mailbox.claimWakeup());
+        mailbox.offer(() -> {
+        });
+        assertTrue("wakeup already pending", !mailbox.claimWakeup());
+        assertTrue("wakeup already pending", !mailbox.claimWakeup());
+        // drain() 执行任务期间投递的任务需要再唤醒一次
+        boolean[] claimedDuringDrain = new boolean[1];
+        mailbox.offer(() -> claimedDuringDrain[0] = mailbox.claimWakeup());
+        assertEquals(3, mailbox.drain());
+        assertTrue("drain should clear the pending wakeup", claimedDuringDrain[0]);
+        assertTrue("wakeup already pending", !mailbox.claimWakeup());
+        mailbox.drain();
+        assertTrue("drain should clear the pending wakeup", mailbox.claimWakeup());
+    }
+
+    /**
+     * Connection.deferFlushes()：同一批中发给一个连接的多条消息只在队列从空变为非空时询问一次，
+     * 之后由调用者 flush() 一次写出
+     */
+    @Test
+    public void testDeferredFlushCoalescesSends() throws IOException {
+        Connection connection = connect(false);
+        List<Connection> deferred = new ArrayList<>();
+        connection.deferFlushes(deferred::add);
+        for (int i = 0; i < 3; i++) {
+            connection.send(StandardCharsets.US_ASCII.encode("message-" + i + "\n"));
+        }
+        assertEquals(Collections.singletonList(connection), deferred);
+        assertEquals(30, connection.pendingBytes());
+        connection.flush();
+        assertEquals(0, connection.pendingBytes());
+
+        SocketChannel peer = peers.get(0);
+        ByteBuffer received = ByteBuffer.allocate(64);
+        while (received.position() < 30) {
+            peer.read(received);
+        }
+        received.flip();
+        assertEquals("message-0\nmessage-1\nmessage-2\n", StandardCharsets.US_ASCII.decode(received).toString());
+
+        // flush 之后队列又是空的，下一条消息重新询问
+        connection.send(StandardCharsets.US_ASCII.encode("message-3\n"));
+        assertEquals(2, deferred.size());
+    }
+
+    /**
+     * TLS：SSLSocket 客户端和启用了 TLS 的 Worker 往返。池子里的缓冲区比一条 TLS 记录小，
+     * 握手、解密和加密都要扩容（BUFFER_UNDERFLOW / BUFFER_OVERFLOW），回复比一条记录大，要分成多条记录写出。
+     * 客户端半关闭发送 close_notify 之后，服务端也要回一个 close_notify 再关闭连接
+     */
+    @Test
+    public void testTlsRoundTrip() throws IOException {
+        char[] password = "changeit".toCharArray();
+        TlsContext tlsContext = new TlsContext(TlsContext.load(TlsContext.selfSigned(password), password), 256, 1024);
+        MultiThreadSelectorServer.Worker[] workers = new MultiThreadSelectorServer.Worker[1];
+        workers[0] = new MultiThreadSelectorServer.Worker(0, workers, null,
+                new Broadcaster(workers, 64, 1024, Broadcaster.SlowSubscriberPolicy.DROP),
+                tlsContext, null, null, receiveBuffers, null);
+        InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+        // SSLSocket 把对方直接断开也当作正常结束，所以叠在普通 Socket 上，最后从普通 Socket 上读 close_notify 的记录
+        try (Socket plain = new Socket(address.getAddress(), address.getPort());
+             SSLSocket socket = (SSLSocket) tlsContext.sslContext().getSocketFactory()
+                     .createSocket(plain, address.getHostString(), address.getPort(), false)) {
+            socket.setSoTimeout(10000);
+            SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+            workers[0].initialize(channel);
+
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            out.write("ID\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String id = in.readLine();
+            assertTrue("unexpected reply " + id, id.startsWith("id "));
+
+            char[] chars = new char[40000];
+            Arrays.fill(chars, 'x');
+            String message = new String(chars);
+            out.write(("TO " + id.substring(3) + " " + message + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals(message, in.readLine());
+
+            socket.shutdownOutput();
+            InputStream raw = plain.getInputStream();
+            byte[] header = new byte[5];
+            readFully(raw, header);
+            // TLS 1.2 是明文的 alert 记录，TLS 1.3 的 alert 加密之后是 application_data 记录
+            assertTrue("expected an alert record, got type " + header[0], header[0] == 21 || header[0] == 23);
+            readFully(raw, new byte[((header[3] & 0xff) << 8) | (header[4] & 0xff)]);
+            assertEquals(-1, raw.read());
+        }
+    }
+
+    /**
+     * TO：目标id所在的worker还没有启动（没有 selector），或者超出了worker的个数时回复 error，发送者所在的worker照常工作
+     */
+    @Test
+    public void testRouteToMissingWorker() throws IOException {
+        MultiThreadSelectorServer.Worker[] workers = new MultiThreadSelectorServer.Worker[2];
+        Broadcaster broadcaster = new Broadcaster(workers, 64, 1024, Broadcaster.SlowSubscriberPolicy.DROP);
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new MultiThreadSelectorServer.Worker(i, workers, null, broadcaster,
+                    null, null, null, receiveBuffers, null);
+        }
+        try (Socket socket = new Socket()) {
+            socket.setSoTimeout(10000);
+            socket.connect(server.getLocalAddress());
+            SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+            workers[0].initialize(channel);
+
+            OutputStream out = socket.getOutputStream();
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            out.write(("TO " + ConnectionTable.id(1, 1) + " idle\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(("TO " + ConnectionTable.id(2, 1) + " missing\n").getBytes(StandardCharsets.US_ASCII));
+            out.write("ID\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertEquals("error", in.readLine());
+            assertEquals("error", in.readLine());
+            assertEquals("id " + ConnectionTable.id(0, 1), in.readLine());
+        }
+        assertTrue("idle worker must not be started", !workers[1].isInitialized());
+    }
+
+    /**
+     * NetworkEvents：没有录制时 begin*() 返回 null，不分配事件对象；录制中启用的事件才会被记录，被禁用的事件仍然返回 null
+     */
+    @Test
+    public void testNetworkEventsOnlyWhenRecording() throws IOException {
+        if (!NetworkEvents.AVAILABLE) {
+            return;
+        }
+        assertNull(NetworkEvents.beginAccept());
+        assertNull(NetworkEvents.beginRead());
+        assertNull(NetworkEvents.beginDecode());
+        assertNull(NetworkEvents.beginWrite());
+
+        Path file = Files.createTempFile("network-events", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable("edu.cqupt.nio.Read").withThreshold(Duration.ZERO);
+            recording.disable("edu.cqupt.nio.Decode");
+            recording.start();
+            Object read = NetworkEvents.beginRead();
+            assertTrue("recording enabled the read event", read != null);
+            assertNull(NetworkEvents.beginDecode());
+            NetworkEvents.endRead(read, 42, 7);
+            recording.stop();
+            recording.dump(file);
+
+            List<RecordedEvent> events = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                if (event.getEventType().getName().equals("edu.cqupt.nio.Read")) {
+                    events.add(event);
+                }
+            }
+            assertEquals(1, events.size());
+            assertEquals(42, events.get(0).getLong("connectionId"));
+            assertEquals(7, events.get(0).getInt("bytes"));
+        } finally {
+            Files.delete(file);
+        }
+        assertNull(NetworkEvents.beginRead());
+    }
+
+    private static void readFully(InputStream in, byte[] bytes) throws IOException {
+        for (int n = 0; n < bytes.length; ) {
+            int read = in.read(bytes, n, bytes.length - n);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            n += read;
+        }
+    }
+
+    private Connection newConnection() {
+        return new Connection(null, null, receiveBuffers);
+    }
+}
@@ -0,0 +1,188 @@
+package edu.cqupt.nio.network;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TLS 和明文的吞吐量对比
+ *
+ * 服务端是一个单线程的 selector 循环，只读取并丢弃数据，TLS 连接通过 TlsChannel 在这个线程中握手和解密；
+ * 客户端用阻塞的 Socket / SSLSocket 写出 bench.mb MB 数据，证书是临时生成的自签名证书。
+ *
+ * -Dbench.mb=每种方式发送的数据量，默认 64
+ */
+@Slf4j
+public class TlsBenchmark {
+    @Test
+    public void testThroughput() throws Exception {
+        long total = Long.getLong("bench.mb", 64) * 1024 * 1024;
+        char[] password = "changeit".toCharArray();
+        TlsContext tlsContext = new TlsContext(TlsContext.load(TlsContext.selfSigned(password), password));
+
+        // 预热
+        run(null, total / 4);
+        run(tlsContext, total / 4);
+
+        long plain = run(null, total);
+        long tls = run(tlsContext, total);
+        System.out.printf("plain: %d ms, %.1f MB/s%n", plain, mbPerSecond(total, plain));
+        System.out.printf("tls  : %d ms, %.1f MB/s (%s)%n", tls, mbPerSecond(total, tls),
+                tlsContext.sslContext().getProtocol());
+    }
+
+    private static double mbPerSecond(long bytes, long millis) {
+        return bytes / 1024.0 / 1024.0 / Math.max(millis, 1) * 1000;
+    }
+
+    /**
+     * @return 从开始连接到服务端收到全部数据的毫秒数
+     */
+    private static long run(TlsContext tlsContext, long total) throws Exception {
+        try (Sink sink = new Sink(tlsContext, total)) {
+            Thread thread = new Thread(sink, "sink");
+            thread.start();
+            long start = System.nanoTime();
+            try (Socket socket = tlsContext == null
+                    ? new Socket("localhost", sink.port())
+                    : tlsContext.sslContext().getSocketFactory().createSocket("localhost", sink.port())) {
+                if (socket instanceof SSLSocket) {
+                    ((SSLSocket) socket).startHandshake();
+                }
+                OutputStream out = socket.getOutputStream();
+                byte[] chunk = new byte[64 * 1024];
+                Arrays.fill(chunk, (byte) 'a');
+                for (long sent = 0; sent < total; sent += chunk.length) {
+                    out.write(chunk, 0, (int) Math.min(chunk.length, total - sent));
+                }
+                out.flush();
+                Assert.assertTrue("sink timed out", sink.done.await(2, TimeUnit.MINUTES));
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            Assert.assertEquals(total, sink.received);
+            thread.join();
+            return millis;
+        }
+    }
+
+    /**
+     * 读取并丢弃数据，收到 total 字节后结束
+     */
+    private static class Sink implements Runnable, AutoCloseable {
+        private final TlsContext tlsContext;
+        private final long total;
+        private final Selector selector;
+        private final ServerSocketChannel ssc;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile long received;
+
+        Sink(TlsContext tlsContext, long total) throws IOException {
+            this.tlsContext = tlsContext;
+            this.total = total;
+            this.selector = Selector.open();
+            this.ssc = ServerSocketChannel.open();
+            ssc.bind(new InetSocketAddress("localhost", 0));
+            ssc.configureBlocking(false);
+            ssc.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        int port() throws IOException {
+            return ((InetSocketAddress) ssc.getLocalAddress()).getPort();
+        }
+
+        private void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (done.getCount() > 0) {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                    while (iterator.hasNext()) {
+                        SelectionKey key = iterator.next();
+                        iterator.remove();
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable() || key.isWritable()) {
+                            drain(key);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                log.debug("sink failed...", e);
+                done.countDown();
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel sc = ssc.accept();
+            sc.configureBlocking(false);
+            SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+            if (tlsContext != null) {
+                key.attach(tlsContext.newServerChannel(sc, key, this::execute, () -> {
+                    try {
+                        drain(key);
+                    } catch (IOException e) {
+                        log.debug("resume failed...", e);
+                    }
+                }));
+            }
+        }
+
+        private void drain(SelectionKey key) throws IOException {
+            TlsChannel tls = (TlsChannel) key.attachment();
+            if (tls != null && !tls.handshake()) {
+                return;
+            }
+            SocketChannel sc = (SocketChannel) key.channel();
+            int n;
+            do {
+                buffer.clear();
+                n = tls != null ? tls.read(buffer) : sc.read(buffer);
+                if (n > 0) {
+                    received += n;
+                }
+            } while (n > 0 || (tls != null && tls.hasBufferedInput()));
+            if (received >= total || n < 0) {
+                if (tls != null) {
+                    tls.close();
+                }
+                sc.close();
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            done.countDown();
+            selector.wakeup();
+            ssc.close();
+            selector.close();
+        }
+    }
+}
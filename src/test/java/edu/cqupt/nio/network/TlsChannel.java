@@ -0,0 +1,346 @@
+package edu.cqupt.nio.network;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executor;
+
+/**
+ * 基于 SSLEngine 的非阻塞 TLS 通道，包装一个注册在 selector 上的 SocketChannel
+ *
+ * SSLEngine 本身不做 I/O，只负责把明文加密（wrap）成 TLS 记录、把 TLS 记录解密（unwrap）成明文，
+ * 所以读写都要经过两层缓冲区：
+ * netIn：从 socket 读到的加密数据（写模式），可能只有半条 TLS 记录
+ * appIn：解密出来还没有被取走的明文（读模式）
+ * netOut：加密好还没有写进 socket 的数据（读模式）
+ *
+ * read() / write() 的语义和非阻塞 SocketChannel 一样：读不到、写不进去时返回 0，由调用者等待下一次事件。
+ * 握手在第一次 read() / write() 时在 selector 线程中推进，需要执行 delegated task 时交给线程池，
+ * 执行完之后通过 eventLoop 回到 selector 线程调用 resume 继续。
+ *
+ * 只能在注册它的 selector 所在的线程中使用
+ */
+@Slf4j
+class TlsChannel implements ByteChannel, GatheringByteChannel {
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final TlsContext context;
+    private final SSLEngine engine;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Executor eventLoop;
+    private final Runnable resume;
+    private ByteBuffer netIn;
+    private ByteBuffer appIn;
+    private ByteBuffer netOut;
+    private boolean handshakeDone;
+    private boolean taskRunning;
+    /**
+     * netIn 中还有完整的 TLS 记录，因为 appIn 放不下而没有解密
+     */
+    private boolean pendingUnwrap;
+    private boolean inboundDone;
+
+    TlsChannel(TlsContext context, SSLEngine engine, SocketChannel channel, SelectionKey key,
+               Executor eventLoop, Runnable resume) throws SSLException {
+        this.context = context;
+        this.engine = engine;
+        this.channel = channel;
+        this.key = key;
+        this.eventLoop = eventLoop;
+        this.resume = resume;
+        this.netIn = context.packetPool.acquire();
+        this.appIn = (ByteBuffer) context.applicationPool.acquire().flip();
+        this.netOut = (ByteBuffer) context.packetPool.acquire().flip();
+        engine.beginHandshake();
+    }
+
+    /**
+     * 推进握手
+     *
+     * @return 握手是否已经完成
+     */
+    boolean handshake() throws IOException {
+        if (handshakeDone) {
+            return true;
+        }
+        while (true) {
+            if (!flushOutbound()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return false;
+            }
+            switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    // 任务执行完之前读写都没有意义，取消关注，否则水平触发的可写（可读）事件会让worker空转
+                    key.interestOps(0);
+                    runDelegatedTasks();
+                    return false;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    log.debug("handshake finished...{} {}", channel, engine.getSession().getCipherSuite());
+                    handshakeDone = true;
+                    // 握手期间可能已经收到了应用数据，也可能有等待握手的数据要发送
+                    eventLoop.execute(resume);
+                    return true;
+                default:
+                    if (!unwrapHandshake()) {
+                        // 等待对方的数据，不需要关注可写事件
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        return false;
+                    }
+            }
+        }
+    }
+
+    private void runDelegatedTasks() {
+        if (taskRunning) {
+            return;
+        }
+        taskRunning = true;
+        context.delegatedTasks.execute(() -> {
+            Runnable task;
+            while ((task = engine.getDelegatedTask()) != null) {
+                task.run();
+            }
+            eventLoop.execute(() -> {
+                taskRunning = false;
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    resume.run();
+                }
+            });
+        });
+    }
+
+    /**
+     * @return 是否有进展，false 表示要等待 socket 可读
+     */
+    private boolean unwrapHandshake() throws IOException {
+        SSLEngineResult result = unwrap();
+        switch (result.getStatus()) {
+            case OK:
+                return true;
+            case BUFFER_UNDERFLOW:
+                int packetSize = engine.getSession().getPacketBufferSize();
+                if (netIn.capacity() < packetSize) {
+                    netIn.flip();
+                    netIn = grow(netIn, packetSize).compact();
+                }
+                int read = channel.read(netIn);
+                if (read < 0) {
+                    throw new EOFException("connection closed during handshake");
+                }
+                return read > 0;
+            case BUFFER_OVERFLOW:
+                appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                return true;
+            default:
+                if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    // 发送 alert
+                    return true;
+                }
+                throw new EOFException("connection closed during handshake");
+        }
+    }
+
+    private SSLEngineResult unwrap() throws SSLException {
+        netIn.flip();
+        appIn.compact();
+        try {
+            return engine.unwrap(netIn, appIn);
+        } finally {
+            netIn.compact();
+            appIn.flip();
+        }
+    }
+
+    private void wrap(ByteBuffer... srcs) throws IOException {
+        wrap(srcs, 0, srcs.length);
+    }
+
+    private SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        netOut.compact();
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(srcs, offset, length, netOut);
+        } finally {
+            netOut.flip();
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+                break;
+            case CLOSED:
+                if (!netOut.hasRemaining()) {
+                    throw new ClosedChannelException();
+                }
+                break;
+            default:
+        }
+        return result;
+    }
+
+    /**
+     * 读模式的 buffer 至少再留出 size 字节的空间
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int size) {
+        ByteBuffer newBuffer = ByteBuffer.allocateDirect(buffer.remaining() + size);
+        newBuffer.put(buffer).flip();
+        return newBuffer;
+    }
+
+    /**
+     * 把加密好的数据写进 socket
+     *
+     * @return 是否全部写完
+     */
+    boolean flushOutbound() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 已经解密、或者可以继续解密的数据不会再触发可读事件，调用者应该继续 read()
+     */
+    boolean hasBufferedInput() {
+        return appIn.hasRemaining() || pendingUnwrap;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!handshake()) {
+            return 0;
+        }
+        if (!appIn.hasRemaining()) {
+            int read = pendingUnwrap ? 0 : channel.read(netIn);
+            unwrapAvailable();
+            if (!appIn.hasRemaining() && (read < 0 || inboundDone)) {
+                return -1;
+            }
+        }
+        int n = Math.min(appIn.remaining(), dst.remaining());
+        ByteBuffer slice = appIn.duplicate();
+        slice.limit(slice.position() + n);
+        dst.put(slice);
+        appIn.position(appIn.position() + n);
+        return n;
+    }
+
+    /**
+     * 解密 netIn 中所有完整的 TLS 记录
+     */
+    private void unwrapAvailable() throws IOException {
+        pendingUnwrap = false;
+        while (true) {
+            SSLEngineResult result = unwrap();
+            switch (result.getStatus()) {
+                case OK:
+                    if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+                            && result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED) {
+                        // 握手之后的握手消息（例如 KeyUpdate、重新协商）
+                        handshakeDone = false;
+                        handshake();
+                    }
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                        return;
+                    }
+                    break;
+                case BUFFER_UNDERFLOW:
+                    int packetSize = engine.getSession().getPacketBufferSize();
+                    if (netIn.capacity() < packetSize) {
+                        netIn.flip();
+                        netIn = grow(netIn, packetSize).compact();
+                    }
+                    return;
+                case BUFFER_OVERFLOW:
+                    if (appIn.hasRemaining()) {
+                        // 先让调用者取走已经解密的数据
+                        pendingUnwrap = true;
+                        return;
+                    }
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                default:
+                    inboundDone = true;
+                    return;
+            }
+        }
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        return (int) write(new ByteBuffer[]{src}, 0, 1);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * 把明文加密后写进 socket，加密好的数据全部写出去之后才会继续加密下一条记录。
+     * 返回值是被加密的明文字节数，socket 写不进去时可能还有加密数据留在 netOut，见 flushOutbound()
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if (!handshake()) {
+            return 0;
+        }
+        long consumed = 0;
+        while (flushOutbound()) {
+            SSLEngineResult result = wrap(srcs, offset, length);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                continue;
+            }
+            if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+                break;
+            }
+            consumed += result.bytesConsumed();
+        }
+        return consumed;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * 尽量发送 close_notify，然后归还缓冲区。不关闭底层的 SocketChannel
+     */
+    @Override
+    public void close() {
+        engine.closeOutbound();
+        try {
+            if (channel.isOpen() && flushOutbound()) {
+                wrap(EMPTY);
+                flushOutbound();
+            }
+        } catch (IOException e) {
+            log.debug("close_notify failed...{}", e.toString());
+        }
+        context.packetPool.release(netIn);
+        context.packetPool.release(netOut);
+        context.applicationPool.release(appIn);
+        netIn = ByteBuffer.allocate(0);
+        netOut = ByteBuffer.allocate(0);
+        appIn = ByteBuffer.allocate(0);
+    }
+}
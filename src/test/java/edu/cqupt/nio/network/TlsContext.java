@@ -0,0 +1,139 @@
+package edu.cqupt.nio.network;
+
+import edu.cqupt.nio.byteBuffer.utils.ByteBufferPool;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 服务器共用的 TLS 配置，为每个连接创建 TlsChannel
+ *
+ * 1. 证书和信任的证书来自同一个 keystore，自签名证书也可以直接用于本地的客户端
+ * 2. 加密数据（packet）和明文数据（application）的缓冲区分别来自两个池子，大小取自 SSLSession
+ * 3. 握手中耗时的计算（delegated task，例如证书校验、密钥交换）交给单独的线程池，不阻塞 worker 线程
+ *
+ * -Dnio.tls.keyStore=keystore 文件的路径，PKCS12 格式；为 selfsigned 时在临时目录中生成一个自签名证书；不设置时不启用 TLS
+ * -Dnio.tls.password=keystore 的密码，默认 changeit
+ */
+@Slf4j
+class TlsContext {
+    private final SSLContext sslContext;
+    final ByteBufferPool packetPool;
+    final ByteBufferPool applicationPool;
+    final ExecutorService delegatedTasks;
+
+    TlsContext(SSLContext sslContext) {
+        this(sslContext, sslContext.createSSLEngine().getSession());
+    }
+
+    private TlsContext(SSLContext sslContext, SSLSession session) {
+        this(sslContext, session.getPacketBufferSize(), session.getApplicationBufferSize());
+    }
+
+    /**
+     * 缓冲区小于 SSLSession 给出的大小时，TlsChannel 在 BUFFER_OVERFLOW / BUFFER_UNDERFLOW 时扩容，测试用
+     */
+    TlsContext(SSLContext sslContext, int packetBufferSize, int applicationBufferSize) {
+        this.sslContext = sslContext;
+        this.packetPool = new ByteBufferPool(packetBufferSize, true, 1024);
+        this.applicationPool = new ByteBufferPool(applicationBufferSize, true, 1024);
+        AtomicInteger index = new AtomicInteger();
+        this.delegatedTasks = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "tls-task-" + index.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return 没有设置 nio.tls.keyStore 时返回 null
+     */
+    static TlsContext fromSystemProperties() throws IOException {
+        String keyStore = System.getProperty("nio.tls.keyStore");
+        if (keyStore == null) {
+            return null;
+        }
+        char[] password = System.getProperty("nio.tls.password", "changeit").toCharArray();
+        Path path = "selfsigned".equals(keyStore) ? selfSigned(password) : Paths.get(keyStore);
+        return new TlsContext(load(path, password));
+    }
+
+    /**
+     * 用 JDK 自带的 keytool 生成一个 CN=localhost 的自签名证书
+     */
+    static Path selfSigned(char[] password) throws IOException {
+        Path dir = Files.createTempDirectory("nio-tls");
+        Path keyStore = dir.resolve("selfsigned.p12");
+        String pass = new String(password);
+        Process process = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "nio", "-keyalg", "RSA", "-keysize", "2048",
+                "-dname", "CN=localhost", "-validity", "365", "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(), "-storepass", pass, "-keypass", pass)
+                .redirectErrorStream(true)
+                .start();
+        try {
+            if (!process.waitFor(60, TimeUnit.SECONDS) || process.exitValue() != 0) {
+                throw new IOException("keytool failed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while running keytool", e);
+        }
+        keyStore.toFile().deleteOnExit();
+        dir.toFile().deleteOnExit();
+        log.debug("self-signed certificate...{}", keyStore);
+        return keyStore;
+    }
+
+    static SSLContext load(Path path, char[] password) throws IOException {
+        try (InputStream in = Files.newInputStream(path)) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(in, password);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, password);
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(keyStore);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("load key store failed: " + path, e);
+        }
+    }
+
+    SSLContext sslContext() {
+        return sslContext;
+    }
+
+    /**
+     * 为服务端接收的连接创建 TlsChannel，只能在 key 所在的 selector 线程中使用
+     *
+     * @param eventLoop 把任务交回 selector 线程执行
+     * @param resume    delegated task 执行完、或者握手完成之后，在 selector 线程中被调用，用于继续读写
+     */
+    TlsChannel newServerChannel(SocketChannel channel, SelectionKey key, Executor eventLoop, Runnable resume)
+            throws IOException {
+        SSLEngine engine = sslContext.createSSLEngine();
+        engine.setUseClientMode(false);
+        return new TlsChannel(this, engine, channel, key, eventLoop, resume);
+    }
+}
@@ -0,0 +1,74 @@
+package edu.cqupt.nio.network;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 令牌桶：桶中最多有 burstBytes 个令牌，每秒补充 bytesPerSecond 个，发送一个字节消耗一个令牌
+ *
+ * 令牌按照 System.nanoTime() 的时间差惰性补充，不需要定时任务。只能在一个线程中使用
+ */
+class TokenBucket {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final long bytesPerSecond;
+    private final long burstBytes;
+    /**
+     * 桶从空到满需要的时间
+     */
+    private final long fillNanos;
+    private long tokens;
+    private long lastRefill;
+
+    TokenBucket(long bytesPerSecond, long burstBytes, long now) {
+        if (bytesPerSecond <= 0 || burstBytes <= 0) {
+            throw new IllegalArgumentException("bytesPerSecond and burstBytes must be positive");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.burstBytes = burstBytes;
+        this.fillNanos = burstBytes * NANOS_PER_SECOND / bytesPerSecond;
+        this.tokens = burstBytes;
+        this.lastRefill = now;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0) {
+            return;
+        }
+        if (elapsed >= fillNanos) {
+            tokens = burstBytes;
+            lastRefill = now;
+            return;
+        }
+        long add = elapsed * bytesPerSecond / NANOS_PER_SECOND;
+        if (add > 0) {
+            tokens = Math.min(burstBytes, tokens + add);
+            // 只推进整数个令牌对应的时间，余下的时间留到下一次
+            lastRefill += add * NANOS_PER_SECOND / bytesPerSecond;
+        }
+    }
+
+    /**
+     * 当前可以发送的字节数
+     */
+    long available(long now) {
+        refill(now);
+        return tokens;
+    }
+
+    void consume(long bytes) {
+        tokens -= bytes;
+    }
+
+    /**
+     * 还要等多久才能攒够 bytes 个令牌，bytes 超过桶的容量时按桶的容量计算
+     */
+    long nanosUntil(long bytes, long now) {
+        refill(now);
+        long missing = Math.min(bytes, burstBytes) - tokens;
+        if (missing <= 0) {
+            return 0;
+        }
+        return (missing * NANOS_PER_SECOND + bytesPerSecond - 1) / bytesPerSecond;
+    }
+}
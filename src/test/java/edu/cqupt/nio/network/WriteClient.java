@@ -14,13 +14,39 @@ public class WriteClient {
         SocketChannel sc = SocketChannel.open();
         sc.connect(new InetSocketAddress("localhost", 8080));
 
+        // 和服务器一致的压缩参数，见 WriteServer
+        CompressionCodec codec = CompressionCodec.fromSystemProperties();
+        CompressionCodec.Decoder decoder = codec == null ? null : codec.newDecoder();
+
+        // 接收缓冲区的大小跟着每次读到的字节数调整，见 ReceiveBufferAllocator
+        ReceiveBufferAllocator receiveBuffers = ReceiveBufferAllocator.fromSystemProperties();
+        ReceiveBufferAllocator.Handle receiveSize = receiveBuffers.newHandle();
+
         // 接收数据
         int count = 0;
         while (true) {
-            ByteBuffer byteBuffer = ByteBuffer.allocate(1024 * 1024);
-            count += sc.read(byteBuffer);
-            System.out.println("读取数量：" + count);
-            byteBuffer.clear();
+            ByteBuffer byteBuffer = receiveSize.allocate();
+            int read;
+            if (decoder == null) {
+                read = sc.read(byteBuffer);
+                if (read > 0) {
+                    count += read;
+                }
+                System.out.println("读取数量：" + count + "，缓冲区：" + byteBuffer.capacity());
+            } else {
+                read = sc.read(decoder.wire());
+                do {
+                    count += decoder.decode(byteBuffer);
+                    byteBuffer.clear();
+                } while (decoder.hasBufferedInput());
+                System.out.println("读取数量：" + count + "，" + codec.report());
+            }
+            receiveBuffers.release(byteBuffer);
+            if (read < 0) {
+                break;
+            }
+            receiveSize.record(read);
         }
+        sc.close();
     }
 }
@@ -8,7 +8,9 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * @author LWenH
@@ -16,9 +18,17 @@ import java.util.Iterator;
  * <p>
  * 处理写事件的服务器
  * 服务器向客户端写数据
+ *
+ * 设置了 -Dnio.compress=frame|batch 时，数据按 FRAME_BYTES 切分后压缩再发送（见 CompressionCodec），
+ * 客户端 WriteClient 也要设置同样的参数
+ *
+ * 没有写完并且超过阈值的写操作会产生 JFR 事件（见 NetworkEvents），只在开启了 JFR 录制时记录
  */
 public class WriteServer {
+    private static final int FRAME_BYTES = 8 * 1024;
+
     public static void main(String[] args) throws IOException {
+        CompressionCodec codec = CompressionCodec.fromSystemProperties();
         ServerSocketChannel ssc = ServerSocketChannel.open();
         ssc.bind(new InetSocketAddress(8080));
         ssc.configureBlocking(false);
@@ -40,9 +50,13 @@ public class WriteServer {
                         stringBuilder.append("greenhand");
                     }
                     ByteBuffer buffer = Charset.defaultCharset().encode(stringBuilder.toString());
+                    if (codec != null) {
+                        buffer = compress(codec, buffer);
+                        System.out.println(codec.report());
+                    }
 
                     // 返回值代表直接写入的字节数
-                    int write = sc.write(buffer);
+                    int write = write(sc, buffer);
                     System.out.println("写入的字节数：" + write);
 
                     /*
@@ -60,7 +74,7 @@ public class WriteServer {
                     // 如果是写事件，说明服务端一次没有写完
                     ByteBuffer buffer = (ByteBuffer) key.attachment();
                     SocketChannel sc = (SocketChannel) key.channel();
-                    int write = sc.write(buffer);
+                    int write = write(sc, buffer);
                     System.out.println("写入的字节数：" + write);
                     // 清理操作
                     if (! buffer.hasRemaining()) {
@@ -73,4 +87,46 @@ public class WriteServer {
             }
         }
     }
+
+    /**
+     * 写一次，没有写完时记录一个 PartialWriteEvent
+     */
+    private static int write(SocketChannel sc, ByteBuffer buffer) throws IOException {
+        Object event = NetworkEvents.beginWrite();
+        int requested = buffer.remaining();
+        int written = sc.write(buffer);
+        NetworkEvents.endWrite(event, sc, requested, written);
+        return written;
+    }
+
+    /**
+     * 把数据切分成 FRAME_BYTES 大小的帧，依次交给同一个压缩流
+     */
+    private static ByteBuffer compress(CompressionCodec codec, ByteBuffer data) {
+        CompressionCodec.Encoder encoder = codec.newEncoder();
+        List<ByteBuffer> blocks = new ArrayList<>();
+        int total = 0;
+        while (data.hasRemaining()) {
+            ByteBuffer frame = data.duplicate();
+            frame.limit(Math.min(data.limit(), data.position() + FRAME_BYTES));
+            data.position(frame.limit());
+            ByteBuffer block = encoder.encode(frame);
+            if (block != null) {
+                blocks.add(block);
+                total += block.remaining();
+            }
+        }
+        ByteBuffer last = encoder.flush();
+        if (last != null) {
+            blocks.add(last);
+            total += last.remaining();
+        }
+        encoder.close();
+        ByteBuffer result = ByteBuffer.allocate(total);
+        for (ByteBuffer block : blocks) {
+            result.put(block);
+        }
+        result.flip();
+        return result;
+    }
 }